@@ -0,0 +1,29 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+@Configuration
+public class IdGeneratorConfig {
+
+    //业务代码注入的id生成器，redis：Redis号段自增，snowflake：雪花算法，生成时不依赖Redis
+    @Bean
+    @Primary
+    public IdGenerator idGenerator(@Value("${hmdp.id.strategy:redis}") String strategy,
+                                   RedisIdWorker redisIdWorker,
+                                   ObjectProvider<SnowflakeIdWorker> snowflakeIdWorker){
+        if("snowflake".equalsIgnoreCase(strategy)){
+            return snowflakeIdWorker.getObject();
+        }
+        if("redis".equalsIgnoreCase(strategy)){
+            return redisIdWorker;
+        }
+        throw new IllegalArgumentException("不支持的id生成策略：" + strategy);
+    }
+}
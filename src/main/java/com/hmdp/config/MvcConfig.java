@@ -1,19 +1,31 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedTokenService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
+    //可以调用管理接口的用户id，为空时所有人都不能调用
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminUserIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器后执行
@@ -25,9 +37,15 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        "/user/token/refresh"
                 ).order(1);
+        //管理接口的拦截器最后执行：修改秒杀券（补货、修改秒杀时间）、手动预热店铺缓存只允许管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminUserIds, "PUT"))
+                .addPathPatterns("/voucher/seckill").order(2);
+        registry.addInterceptor(new AdminInterceptor(adminUserIds, "POST"))
+                .addPathPatterns("/shop/cache/warmup").order(2);
         //token刷新的拦截器先执行
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, signedTokenService)).addPathPatterns("/**").order(0);
     }
 }
@@ -6,10 +6,14 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -26,6 +30,12 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -36,6 +46,16 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id批量查询商铺信息，一次请求代替多次GET /shop/{id}
+     * @param ids 商铺id列表，例如 ids=1,2,3
+     * @return 商铺详情列表，按ids的顺序返回，不存在的商铺不返回
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryByIds(ids);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -45,10 +65,25 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        bloomFilterGuard.put(RedisConstants.CACHE_SHOP_KEY, shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
 
+    /**
+     * 手动触发店铺缓存预热，比如Redis被清空或者切换到新集群之后，只允许管理员调用
+     * 预热在后台线程执行，结果见日志
+     * @return 无
+     */
+    @PostMapping("/cache/warmup")
+    public Result warmUpShopCache() {
+        if (!cacheWarmer.warmUpAsync()) {
+            return Result.fail("预热任务正在执行！");
+        }
+        return Result.ok();
+    }
+
     /**
      * 更新商铺信息
      * @param shop 商铺数据
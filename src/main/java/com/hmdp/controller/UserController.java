@@ -7,14 +7,17 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.UserHolder;
-import jdk.nashorn.internal.parser.Token;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.lang.management.LockInfo;
+import java.time.Duration;
 
 /**
  * <p>
@@ -35,11 +38,35 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private RateLimiter rateLimiter;
+
+    //发送验证码的限流：窗口内每个手机号、每个IP最多请求的次数
+    @Value("${hmdp.rate-limit.code.window:10m}")
+    private Duration codeWindow;
+    @Value("${hmdp.rate-limit.code.phone:5}")
+    private int codePhoneLimit;
+    @Value("${hmdp.rate-limit.code.ip:50}")
+    private int codeIpLimit;
+
+    //登录的限流：窗口内每个手机号、每个IP最多请求的次数
+    @Value("${hmdp.rate-limit.login.window:10m}")
+    private Duration loginWindow;
+    @Value("${hmdp.rate-limit.login.phone:10}")
+    private int loginPhoneLimit;
+    @Value("${hmdp.rate-limit.login.ip:100}")
+    private int loginIpLimit;
+
     /**
      * 发送手机验证码
      */
     @PostMapping("code")
-    public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
+    public Result sendCode(@RequestParam("phone") String phone, HttpSession session, HttpServletRequest request) {
+        //限流，防止刷验证码
+        if(!rateLimiter.tryAcquire("code:ip", request.getRemoteAddr(), codeIpLimit, codeWindow)
+                || !rateLimiter.tryAcquire("code:phone", phone, codePhoneLimit, codeWindow)){
+            return Result.fail("请求过于频繁，请稍后再试！");
+        }
         userService.sendCode(phone,session);
         return Result.ok();
     }
@@ -50,8 +77,13 @@ public class UserController {
      * @param loginForm 登录参数，包含手机号、验证码；或者手机号、密码
      */
     @PostMapping("/login")
-    public Result login(@RequestBody LoginFormDTO loginForm, HttpSession session){
-
+    public Result login(@RequestBody LoginFormDTO loginForm, HttpSession session, HttpServletRequest request){
+        //限流，防止暴力猜测验证码，也避免登录高峰压垮Redis和MySQL
+        if(!rateLimiter.tryAcquire("login:ip", request.getRemoteAddr(), loginIpLimit, loginWindow)
+                || (loginForm.getPhone()!=null
+                && !rateLimiter.tryAcquire("login:phone", loginForm.getPhone(), loginPhoneLimit, loginWindow))){
+            return Result.fail("请求过于频繁，请稍后再试！");
+        }
         return userService.login(loginForm,session);
     }
 
@@ -60,9 +92,17 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader(value = "authorization", required = false) String token){
+        return userService.logout(token);
+    }
+
+    /**
+     * 用刷新令牌换取新的访问令牌，只在stateless登录模式下可用
+     * @param refreshToken 登录或上次刷新时返回的刷新令牌
+     */
+    @PostMapping("/token/refresh")
+    public Result refreshToken(@RequestParam("refreshToken") String refreshToken){
+        return userService.refreshToken(refreshToken);
     }
 
     @GetMapping("/me")
@@ -4,6 +4,9 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillVoucherCache;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -23,6 +26,12 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -31,6 +40,7 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        bloomFilterGuard.put(RedisConstants.CACHE_VOUCHER_KEY, voucher.getId());
         return Result.ok(voucher.getId());
     }
 
@@ -42,9 +52,27 @@ public class VoucherController {
     @PostMapping("seckill")
     public Result addSeckillVoucher(@RequestBody Voucher voucher) {
         voucherService.addSeckillVoucher(voucher);
+        bloomFilterGuard.put(RedisConstants.CACHE_VOUCHER_KEY, voucher.getId());
+        //事务已提交，通知所有节点重新加载秒杀券
+        seckillVoucherCache.publishChanged(voucher.getId());
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 修改秒杀券，包括秒杀时间和补货
+     * @param voucher 优惠券信息，包含秒杀信息，stock是补货数量，累加到当前库存上
+     * @return 无
+     */
+    @PutMapping("seckill")
+    public Result updateSeckillVoucher(@RequestBody Voucher voucher) {
+        Result result = voucherService.updateSeckillVoucher(voucher);
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            //事务已提交，通知所有节点重新加载秒杀券并取消售罄标记
+            seckillVoucherCache.publishChanged(voucher.getId());
+        }
+        return result;
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -6,6 +6,7 @@ import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -27,7 +28,9 @@ public class VoucherOrderController {
     private IVoucherOrderService voucherOrderService;
 
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        //幂等键的检查、售罄标记和限流都在service中，重试已经成功的请求时先返回订单id
+        return voucherOrderService.seckillVoucher(voucherId, idempotencyKey);
     }
 }
@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TokenDTO {
+    //访问令牌，放在请求头authorization中
+    private String accessToken;
+    //刷新令牌，只用于换取新的访问令牌，每次使用后失效
+    private String refreshToken;
+    //访问令牌的过期时间（毫秒时间戳）
+    private Long expireTime;
+}
@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分片数，0代表不分片；分片时stock是各分片库存之和，由对账任务定时更新
+     */
+    private Integer shards;
+
     /**
      * 创建时间
      */
@@ -0,0 +1,45 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 秒杀优惠券的分片库存，一张秒杀券的库存拆成多行，分散行锁竞争
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_seckill_voucher_stock")
+public class SeckillVoucherStock implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 关联的优惠券的id
+     */
+    private Long voucherId;
+
+    /**
+     * 分片序号，从0开始
+     */
+    private Integer shard;
+
+    /**
+     * 分片的库存
+     */
+    private Integer stock;
+
+    /**
+     * 更新时间
+     */
+    private LocalDateTime updateTime;
+
+
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +16,20 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量累加点赞数
+     * @param deltas 博文id -> 点赞数增量
+     */
+    int updateLikedBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 记录一个已经写入的点赞数增量批次
+     * @return 1代表首次记录，0代表这个批次已经写入过
+     */
+    int insertLikeFlush(@Param("flushId") String flushId);
+
+    /**
+     * 删除一次写回任务的所有批次记录
+     */
+    int deleteLikeFlush(@Param("runId") String runId);
 }
@@ -0,0 +1,24 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.SeckillVoucherStock;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ * 秒杀优惠券的分片库存 Mapper 接口
+ * </p>
+ */
+public interface SeckillVoucherStockMapper extends BaseMapper<SeckillVoucherStock> {
+
+    int insertBatch(@Param("stocks") List<SeckillVoucherStock> stocks);
+
+    /**
+     * 按分片序号锁住分片库存，shards为null时锁住全部分片
+     */
+    List<SeckillVoucherStock> selectForUpdate(@Param("voucherId") Long voucherId,
+                                              @Param("shards") Collection<Integer> shards);
+}
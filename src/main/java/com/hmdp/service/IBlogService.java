@@ -1,5 +1,6 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,35 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
+    /**
+     * 发布博文
+     */
+    Result saveBlog(Blog blog);
+
+    /**
+     * 按热度分页查询热门博文
+     */
+    Result queryHotBlog(Integer current);
+
+    /**
+     * 分页查询当前用户的博文
+     */
+    Result queryMyBlog(Integer current);
+
+    /**
+     * 滚动分页查询关注的人发布的博文
+     * @param max 上一页最小的时间戳，第一页传当前时间
+     * @param offset 上一页中与最小时间戳相同的条数
+     */
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    /**
+     * 点赞，已经点赞过则取消点赞
+     */
+    Result likeBlog(Long id);
+
+    /**
+     * 查询最早点赞的5个用户
+     */
+    Result queryBlogLikes(Long id);
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,20 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IFollowService extends IService<Follow> {
 
+    /**
+     * 关注或取关
+     * @param followUserId 被关注的用户id
+     * @param isFollow true关注，false取关
+     */
+    Result follow(Long followUserId, Boolean isFollow);
+
+    /**
+     * 当前用户是否关注了followUserId
+     */
+    Result isFollow(Long followUserId);
+
+    /**
+     * 关注集合follows:userId不存在时（Redis数据丢失）从tb_follow重建，读取关注集合前调用
+     */
+    void loadFollows(Long userId);
 }
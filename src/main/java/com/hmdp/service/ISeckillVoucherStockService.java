@@ -0,0 +1,49 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.SeckillVoucherStock;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 秒杀优惠券的分片库存 服务类
+ * </p>
+ */
+public interface ISeckillVoucherStockService extends IService<SeckillVoucherStock> {
+
+    /**
+     * 把库存平均拆分到各分片，覆盖数据库和Redis中原有的分片库存，需要在事务中调用，Redis在事务提交后写入
+     */
+    void resetShards(Long voucherId, int shards, int stock);
+
+    /**
+     * 补货：把补货数量平均加到数据库和Redis的各分片库存上，需要在事务中调用，Redis在事务提交后写入
+     */
+    void addStock(Long voucherId, int shards, int delta);
+
+    /**
+     * 用户下单时首先尝试的分片，不同用户分散到不同分片
+     */
+    int shardOf(Long userId, int shards);
+
+    /**
+     * 扣减数据库中的分片库存，需要在事务中调用
+     * 先从各自的起始分片扣，不够的部分从其他分片扣，涉及的分片按分片序号一次性加锁
+     * @param counts 起始分片 -> 扣减数量，一个事务中同一张券只调用一次
+     * @return 是否扣减了全部数量，返回false时调用方需要回滚事务
+     */
+    boolean deduct(Long voucherId, Map<Integer, Integer> counts);
+
+    /**
+     * Redis中各分片库存的key，按分片序号排列
+     */
+    List<String> stockKeys(Long voucherId, int shards);
+
+    /**
+     * 对账：重新平均分配数据库和Redis中的分片库存，并把分片库存之和写回tb_seckill_voucher
+     * @return 数据库中的总库存
+     */
+    int reconcile(Long voucherId, int shards);
+}
@@ -20,4 +20,8 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    Result logout(String token);
+
+    Result refreshToken(String refreshToken);
 }
@@ -14,7 +14,11 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
-    Result seckillVoucher(Long voucherId);
+    /**
+     * 秒杀下单
+     * @param idempotencyKey 客户端生成的幂等键，重试时携带相同的值，可以为空
+     */
+    Result seckillVoucher(Long voucherId, String idempotencyKey);
 
     Result CreateVoucherOrder(Long voucherId);
 }
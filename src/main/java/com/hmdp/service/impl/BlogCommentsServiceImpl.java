@@ -1,10 +1,18 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
 import com.hmdp.service.IBlogCommentsService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.UserHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -17,4 +25,31 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private BlogHotRanking blogHotRanking;
+
+    @Override
+    @Transactional
+    public Result saveComment(BlogComments comment) {
+        if (comment.getBlogId() == null) {
+            return Result.fail("博文id不能为空！");
+        }
+        // 保存评论
+        comment.setUserId(UserHolder.getUser().getId());
+        comment.setId(null);
+        save(comment);
+        // 评论数加1，博文不存在时回滚
+        boolean success = blogService.update()
+                .setSql("comments = IFNULL(comments, 0) + 1").eq("id", comment.getBlogId()).update();
+        if (!success) {
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("博文不存在！");
+        }
+        // 增加热度
+        blogHotRanking.onComment(comment.getBlogId());
+        return Result.ok(comment.getId());
+    }
 }
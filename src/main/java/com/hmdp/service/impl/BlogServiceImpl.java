@@ -1,11 +1,35 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.utils.AuthorHydrator;
+import com.hmdp.utils.BlogFeed;
+import com.hmdp.utils.BlogHotRanking;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +41,127 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    //点赞、取消点赞的Lua脚本
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like_toggle.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private AuthorHydrator authorHydrator;
+
+    @Resource
+    private BlogHotRanking blogHotRanking;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BlogFeed blogFeed;
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 保存探店博文
+        save(blog);
+        // 加入热门排行
+        blogHotRanking.onPost(blog.getId());
+        // 异步推送到粉丝的收件箱
+        blogFeed.publish(user.getId(), blog.getId(), System.currentTimeMillis());
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        //1、从热门排行中按排名取出当前页的博文id，不访问数据库
+        List<Long> ids = blogHotRanking.page(current, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //2、从博文缓存批量查询，保持排行的顺序
+        List<Blog> records = queryBlogs(ids);
+        //3、批量查询作者和是否点赞
+        authorHydrator.hydrate(records);
+        return Result.ok(records);
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        //1、滚动分页读取当前用户的收件箱
+        Long userId = UserHolder.getUser().getId();
+        ScrollResult result = blogFeed.read(userId, max, offset, SystemConstants.DEFAULT_PAGE_SIZE);
+        @SuppressWarnings("unchecked")
+        List<Long> ids = (List<Long>) result.getList();
+        if (ids.isEmpty()) {
+            return Result.ok(result);
+        }
+        //2、从博文缓存批量查询博文，并批量查询作者和是否点赞
+        List<Blog> blogs = queryBlogs(ids);
+        authorHydrator.hydrate(blogs);
+        result.setList(blogs);
+        return Result.ok(result);
+    }
+
+    /**
+     * 从博文缓存批量查询博文，未命中的一次IN查询数据库
+     * 缓存中的对象可能被本地缓存共享，复制一份再填充作者和点赞信息
+     * @return 按ids顺序排列的博文，不存在的博文不返回
+     */
+    private List<Blog> queryBlogs(List<Long> ids) {
+        List<Blog> blogs = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                ids2 -> listByIds(ids2).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        return blogs.stream().map(blog -> BeanUtil.copyProperties(blog, Blog.class)).collect(Collectors.toList());
+    }
+
+    @Override
+    public Result queryMyBlog(Integer current) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        // 根据用户查询
+        Page<Blog> page = query()
+                .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        authorHydrator.hydrate(records);
+        return Result.ok(records);
+    }
+
+    @Override
+    public Result likeBlog(Long id) {
+        //1、点赞用户保存在zset中，同一个用户只能点赞一次，再次点赞则取消
+        //2、点赞数的增量记在Redis中，由BlogLikeFlusher定时批量写回数据库
+        //3、同时增减热门排行中的热度
+        //0、博文必须存在，否则会留下不存在博文的点赞集合、增量和热门排行，走博文缓存，不存在的id也有空值缓存
+        if (queryBlogs(Collections.singletonList(id)).isEmpty()) {
+            return Result.fail("博文不存在！");
+        }
+        Long userId = UserHolder.getUser().getId();
+        stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(RedisConstants.BLOG_LIKED_KEY + id, RedisConstants.BLOG_LIKED_DELTA_KEY,
+                        RedisConstants.BLOG_HOT_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(),
+                String.valueOf(blogHotRanking.getLikeWeight()));
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryBlogLikes(Long id) {
+        //1、查询最早点赞的5个用户 zrange key 0 4
+        Set<String> top5 = stringRedisTemplate.opsForZSet().range(RedisConstants.BLOG_LIKED_KEY + id, 0, 4);
+        if (top5 == null || top5.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        //2、从用户缓存批量查询，按点赞顺序返回
+        List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
+        return Result.ok(authorHydrator.getUsers(ids));
+    }
 }
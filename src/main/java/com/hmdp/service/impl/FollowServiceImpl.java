@@ -1,11 +1,23 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +29,69 @@ import org.springframework.stereotype.Service;
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    //关注集合不存在时重建的Lua脚本
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT;
+    static {
+        LOAD_SCRIPT = new DefaultRedisScript<>();
+        LOAD_SCRIPT.setLocation(new ClassPathResource("follow_load.lua"));
+        LOAD_SCRIPT.setResultType(Long.class);
+    }
+
+    //占位成员，没有关注任何人的用户重建后集合也不为空，不会每次都查数据库；用户id从1开始，不会和它冲突
+    private static final String EMPTY_MEMBER = "0";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        if (userId.equals(followUserId)) {
+            return Result.fail("不能关注自己！");
+        }
+        String key = RedisConstants.FOLLOW_KEY + userId;
+        if (Boolean.TRUE.equals(isFollow)) {
+            //1、关注，新增数据，(user_id, follow_user_id)唯一索引保证重复关注只保存一条
+            Follow follow = new Follow();
+            follow.setUserId(userId);
+            follow.setFollowUserId(followUserId);
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                //已经关注过了
+            }
+            //2、放入当前用户的关注集合 sadd follows:userId followUserId，集合不存在时先重建，避免只剩新关注的用户
+            loadFollows(userId);
+            stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+        } else {
+            //3、取关，删除数据并移出关注集合
+            remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId));
+            loadFollows(userId);
+            stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        //查询关注集合，集合存在时不访问数据库
+        loadFollows(userId);
+        Boolean isMember = stringRedisTemplate.opsForSet()
+                .isMember(RedisConstants.FOLLOW_KEY + userId, followUserId.toString());
+        return Result.ok(Boolean.TRUE.equals(isMember));
+    }
+
+    @Override
+    public void loadFollows(Long userId) {
+        String key = RedisConstants.FOLLOW_KEY + userId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return;
+        }
+        //Redis中的数据丢失后从tb_follow重建
+        List<String> members = listObjs(new QueryWrapper<Follow>().select("follow_user_id").eq("user_id", userId),
+                Object::toString);
+        members.add(EMPTY_MEMBER);
+        stringRedisTemplate.execute(LOAD_SCRIPT, Collections.singletonList(key), members.toArray());
+    }
 }
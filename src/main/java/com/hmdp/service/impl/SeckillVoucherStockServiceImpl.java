@@ -0,0 +1,219 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.SeckillVoucherStock;
+import com.hmdp.mapper.SeckillVoucherStockMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.ISeckillVoucherStockService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TransactionUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * 秒杀优惠券的分片库存 服务实现类
+ * 一张秒杀券的库存拆成多行（Redis中拆成多个key），用户按id分散到不同分片，减少同一行的锁竞争
+ * 分片库存不够时从其他分片扣，所有分片都没有库存才算售罄，所以售罄的判断是准确的
+ * </p>
+ */
+@Service
+public class SeckillVoucherStockServiceImpl extends ServiceImpl<SeckillVoucherStockMapper, SeckillVoucherStock>
+        implements ISeckillVoucherStockService {
+
+    //重新平均分配Redis中分片库存的Lua脚本
+    private static final DefaultRedisScript<Long> REBALANCE_SCRIPT;
+    static {
+        REBALANCE_SCRIPT = new DefaultRedisScript<>();
+        REBALANCE_SCRIPT.setLocation(new ClassPathResource("stock_rebalance.lua"));
+        REBALANCE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public void resetShards(Long voucherId, int shards, int stock) {
+        //1、平均拆分，除不尽的部分分给前面的分片
+        int[] stocks = split(stock, shards);
+        List<SeckillVoucherStock> rows = new ArrayList<>(shards);
+        Map<String, String> redisStocks = new HashMap<>();
+        List<String> keys = stockKeys(voucherId, shards);
+        for (int i = 0; i < shards; i++) {
+            rows.add(new SeckillVoucherStock().setVoucherId(voucherId).setShard(i).setStock(stocks[i]));
+            redisStocks.put(keys.get(i), String.valueOf(stocks[i]));
+        }
+        //2、覆盖数据库中的分片库存
+        remove(new QueryWrapper<SeckillVoucherStock>().eq("voucher_id", voucherId));
+        getBaseMapper().insertBatch(rows);
+        //3、事务提交后覆盖Redis中的分片库存，供异步秒杀的Lua脚本判断库存
+        TransactionUtils.afterCommit(() -> stringRedisTemplate.opsForValue().multiSet(redisStocks));
+    }
+
+    @Override
+    public void addStock(Long voucherId, int shards, int delta) {
+        //1、平均拆分，在数据库中各分片的当前库存上累加
+        int[] deltas = split(delta, shards);
+        List<String> keys = stockKeys(voucherId, shards);
+        for (int i = 0; i < shards; i++) {
+            if (deltas[i] > 0) {
+                update().setSql("stock = stock + " + deltas[i])
+                        .eq("voucher_id", voucherId).eq("shard", i).update();
+            }
+        }
+        //2、事务提交后用一次pipeline累加Redis中的分片库存
+        TransactionUtils.afterCommit(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < shards; i++) {
+                if (deltas[i] > 0) {
+                    conn.incrBy(keys.get(i), deltas[i]);
+                }
+            }
+            return null;
+        }));
+    }
+
+    @Override
+    public int shardOf(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    @Override
+    public boolean deduct(Long voucherId, Map<Integer, Integer> counts) {
+        //1、不加锁读出各分片的库存，起始分片都够时只锁起始分片，否则锁住全部分片
+        Map<Integer, Integer> stocks = toStocks(query().select("shard", "stock").eq("voucher_id", voucherId).list());
+        boolean enough = counts.entrySet().stream()
+                .allMatch(e -> stocks.getOrDefault(e.getKey(), 0) >= e.getValue());
+        //2、一条SELECT ... ORDER BY shard FOR UPDATE按分片序号加锁，起始分片也包含在内
+        //  所有事务都按同样的顺序加锁，不会出现互相等待对方锁住的分片
+        Map<Integer, Integer> taken = allocate(
+                getBaseMapper().selectForUpdate(voucherId, enough ? counts.keySet() : null), counts);
+        if (taken == null && enough) {
+            //读出库存后起始分片被并发的扣减用掉了，锁住全部分片重新分配
+            //只在这种竞争下才会在已持有锁的情况下再加锁，万一死锁由InnoDB检测并回滚，调用方按失败处理
+            taken = allocate(getBaseMapper().selectForUpdate(voucherId, null), counts);
+        }
+        if (taken == null) {
+            return false;
+        }
+        //3、行已经锁住，按分片序号写回扣减的数量
+        taken.forEach((shard, count) -> update().setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).eq("shard", shard).update());
+        return true;
+    }
+
+    //在锁住的分片中分配扣减数量：先扣各自的起始分片，不够的部分按分片序号从其他分片扣
+    //返回每个分片要扣减的数量，库存不够时返回null
+    private static Map<Integer, Integer> allocate(List<SeckillVoucherStock> locked, Map<Integer, Integer> counts) {
+        Map<Integer, Integer> stocks = toStocks(locked);
+        Map<Integer, Integer> taken = new TreeMap<>();
+        int remaining = 0;
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            int take = Math.min(Math.max(stocks.getOrDefault(e.getKey(), 0), 0), e.getValue());
+            if (take > 0) {
+                stocks.merge(e.getKey(), -take, Integer::sum);
+                taken.merge(e.getKey(), take, Integer::sum);
+            }
+            remaining += e.getValue() - take;
+        }
+        for (Map.Entry<Integer, Integer> e : stocks.entrySet()) {
+            if (remaining == 0) {
+                break;
+            }
+            int take = Math.min(e.getValue(), remaining);
+            if (take > 0) {
+                taken.merge(e.getKey(), take, Integer::sum);
+                remaining -= take;
+            }
+        }
+        return remaining == 0 ? taken : null;
+    }
+
+    private static Map<Integer, Integer> toStocks(List<SeckillVoucherStock> rows) {
+        Map<Integer, Integer> stocks = new TreeMap<>();
+        for (SeckillVoucherStock row : rows) {
+            stocks.put(row.getShard(), row.getStock());
+        }
+        return stocks;
+    }
+
+    @Override
+    public List<String> stockKeys(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i);
+        }
+        return keys;
+    }
+
+    @Override
+    @Transactional
+    public int reconcile(Long voucherId, int shards) {
+        //1、不加锁读出分片库存，没有空的分片、总库存也没有变化时不写数据库，避免定时任务每次都锁住所有分片
+        List<SeckillVoucherStock> rows = query().select("shard", "stock").eq("voucher_id", voucherId).list();
+        SeckillVoucher voucher = seckillVoucherService.query().select("stock").eq("voucher_id", voucherId).one();
+        int total = total(rows);
+        if (!needsRebalance(rows, total) && voucher != null && voucher.getStock() == total) {
+            stringRedisTemplate.execute(REBALANCE_SCRIPT, stockKeys(voucherId, shards));
+            return total;
+        }
+        //2、需要调整时再按分片序号锁住所有分片，重新计算总库存
+        rows = getBaseMapper().selectForUpdate(voucherId, null);
+        total = total(rows);
+        //3、有空的分片时重新平均分配，减少下单时跨分片的尝试
+        if (needsRebalance(rows, total)) {
+            int[] stocks = split(total, rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                SeckillVoucherStock row = rows.get(i);
+                if (row.getStock() != stocks[i]) {
+                    update().set("stock", stocks[i])
+                            .eq("voucher_id", voucherId).eq("shard", row.getShard()).update();
+                }
+            }
+        }
+        //4、总库存有变化时写回秒杀券，查询优惠券列表时显示
+        seckillVoucherService.update().set("stock", total)
+                .eq("voucher_id", voucherId).ne("stock", total).update();
+        //5、Redis中的分片库存单独平均分配，异步秒杀时Redis的库存比数据库新，两边不按分片对齐
+        stringRedisTemplate.execute(REBALANCE_SCRIPT, stockKeys(voucherId, shards));
+        return total;
+    }
+
+    private static int total(List<SeckillVoucherStock> rows) {
+        int total = 0;
+        for (SeckillVoucherStock row : rows) {
+            total += Math.max(row.getStock(), 0);
+        }
+        return total;
+    }
+
+    //有空的分片并且还有库存时才需要重新分配
+    private static boolean needsRebalance(List<SeckillVoucherStock> rows, int total) {
+        return total > 0 && rows.stream().anyMatch(row -> row.getStock() <= 0);
+    }
+
+    private static int[] split(int stock, int shards) {
+        int[] stocks = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            stocks[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return stocks;
+    }
+}
@@ -1,27 +1,32 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.TokenDTO;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenService;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.logging.log4j.message.ReusableMessage;
 import org.springframework.beans.BeanUtils;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -41,6 +46,20 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //比较并删除验证码的Lua脚本
+    private static final DefaultRedisScript<Long> CHECK_CODE_SCRIPT;
+    static{
+        CHECK_CODE_SCRIPT = new DefaultRedisScript<>();
+        CHECK_CODE_SCRIPT.setLocation(new ClassPathResource("check_code.lua"));
+        CHECK_CODE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1、校验手机号格式
@@ -78,10 +97,11 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         /*//3、校验验证码
         Object cacheCode=session.getAttribute(SystemConstants.CODE);*/
 
-        //3、从redis获取验证码并校验
-        String cacheCode = stringRedisTemplate.opsForValue().get(RedisConstants.LOGIN_CODE_KEY + phone);
+        //3、校验redis中的验证码，一致时同时删除，同一个验证码只能登录一次
         String code=loginForm.getCode();
-        if(code==null || !code.equals(cacheCode)){
+        Long matched = code==null ? null : stringRedisTemplate.execute(CHECK_CODE_SCRIPT,
+                Collections.singletonList(RedisConstants.LOGIN_CODE_KEY + phone), code);
+        if(matched==null || matched!=1L){
             //4、不一致，报错
             return Result.fail("验证码错误");
         }
@@ -101,34 +121,55 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         BeanUtils.copyProperties(user, userDTO); // 复制属性
         session.setAttribute(SystemConstants.USER,userDTO);*/
 
-        //8、保存用户信息到redis中
-        //8.1随机生成token，作为登录令牌
-        String token = UUID.randomUUID().toString();
-        //8.2将User对象转化为HashMap存储
         UserDTO userDTO = new UserDTO(); // 先创建目标对象
         BeanUtils.copyProperties(user, userDTO); // 复制属性
-        ObjectMapper objectMapper = new ObjectMapper();
-        // 先转换为Map<String, Object>
-        Map<String, Object> objectMap = objectMapper.convertValue(userDTO, Map.class);
-
-        // 手动转换为Map<String, String>,转为String是因为用的是stringRedisTemplate，只能存放String类型，存放不了Long
-        Map<String, String> userMap = new HashMap<>();
-        for (Map.Entry<String, Object> entry : objectMap.entrySet()) {
-            Object value = entry.getValue();
-            userMap.put(entry.getKey(), value != null ? value.toString() : null);
-        }
 
-        //8.3存储
-        String tokenKey=RedisConstants.LOGIN_USER_KEY+token;
-        stringRedisTemplate.opsForHash().putAll(tokenKey,userMap);
+        //stateless模式：签发签名的访问令牌和刷新令牌，不在redis保存用户信息
+        if(signedTokenService.isEnabled()){
+            return Result.ok(signedTokenService.issue(userDTO));
+        }
 
-        //8.4设置token有效期
-        stringRedisTemplate.expire(tokenKey,RedisConstants.LOGIN_USER_TTL,TimeUnit.MINUTES);
+        //8、保存用户信息到redis中
+        //8.1随机生成token，作为登录令牌
+        String token = UUID.randomUUID().toString();
+        //8.2用一次pipeline写入用户信息和token有效期，并放入本地缓存
+        loginSessionCache.save(token,userDTO);
 
         //9、返回token
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if(StrUtil.isBlank(token)){
+            return Result.fail("未登录！");
+        }
+        if(signedTokenService.isEnabled()){
+            //注销访问令牌并删除刷新令牌
+            signedTokenService.revoke(token);
+            return Result.ok();
+        }
+        //删除redis中的token，并通知所有节点删除本地缓存
+        loginSessionCache.revoke(token);
+        return Result.ok();
+    }
+
+    @Override
+    public Result refreshToken(String refreshToken) {
+        if(!signedTokenService.isEnabled()){
+            return Result.fail("当前登录模式不支持刷新令牌！");
+        }
+        //刷新时重新查询用户，昵称、头像的修改会体现在新的访问令牌中
+        TokenDTO tokenDTO = signedTokenService.refresh(refreshToken, userId -> {
+            User user = getById(userId);
+            return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+        });
+        if(tokenDTO==null){
+            return Result.fail("刷新令牌无效，请重新登录！");
+        }
+        return Result.ok(tokenDTO);
+    }
+
     private User createUserWithPhone(String phone) {
         //1、创建用户
         User user=new User();
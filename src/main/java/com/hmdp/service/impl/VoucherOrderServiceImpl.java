@@ -1,25 +1,75 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.SeckillVoucherStock;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.ISeckillVoucherStockService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.IdGenerator;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillVoucherCache;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -29,6 +79,7 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -36,18 +87,501 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private ISeckillVoucherStockService seckillVoucherStockService;
+
+    @Resource
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
+    //幂等键正在处理中的占位值
+    private static final String IDEMPOTENCY_PROCESSING = "0";
+
+    //是否开启异步秒杀：Redis中用Lua脚本完成库存和一人一单校验，订单通过Stream消息队列交给后台线程批量写入数据库
+    @Value("${hmdp.seckill.async:false}")
+    private boolean asyncSeckill;
+
+    //幂等键的有效期，有效期内用同一个幂等键重试返回第一次的订单id
+    @Value("${hmdp.seckill.idempotency-ttl:24h}")
+    private Duration idempotencyTtl;
+
+    //幂等键占位的有效期，处理请求的节点宕机后，过期即可用同一个幂等键重试
+    @Value("${hmdp.seckill.idempotency-processing-ttl:10s}")
+    private Duration idempotencyProcessingTtl;
+
+    //后台线程每次最多写入的订单数
+    @Value("${hmdp.seckill.batch-size:100}")
+    private int batchSize;
+
+    //秒杀资格校验的Lua脚本
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static{
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    //分片库存的秒杀资格校验Lua脚本
+    private static final DefaultRedisScript<Long> SECKILL_SHARDED_SCRIPT;
+    static{
+        SECKILL_SHARDED_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARDED_SCRIPT.setLocation(new ClassPathResource("seckill_sharded.lua"));
+        SECKILL_SHARDED_SCRIPT.setResultType(Long.class);
+    }
+
+    //删除订单消息队列中已确认消息的Lua脚本
+    private static final DefaultRedisScript<Long> STREAM_TRIM_SCRIPT;
+    static{
+        STREAM_TRIM_SCRIPT = new DefaultRedisScript<>();
+        STREAM_TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        STREAM_TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    //订单消息队列的大致最大长度，XADD时按MAXLEN ~裁剪，正常情况下由定时任务删除已确认的消息
+    @Value("${hmdp.seckill.stream-max-len:1000000}")
+    private long streamMaxLen;
+
+    //pending-list中的消息超过这个时间没有确认，就由定时任务领取后重新处理
+    @Value("${hmdp.seckill.pending-claim-idle:60s}")
+    private Duration pendingClaimIdle;
+
+    //订单投递超过这个次数仍然没有确认，转入死信队列stream.orders.dead并确认，不再重试
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //每次定时维护最多检查的pending-list条数
+    @Value("${hmdp.seckill.pending-scan-limit:10000}")
+    private int pendingScanLimit;
+
+    //每个节点消费订单的线程数
+    @Value("${hmdp.seckill.consumers:1}")
+    private int consumers;
+
+    //消费者名称，需要在重启后保持不变，这样才能接着处理自己pending-list中的订单
+    @Value("${hmdp.seckill.consumer-name:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    //订单写入数量、批次大小、消费延迟
+    private Counter orderCounter;
+    private DistributionSummary batchSummary;
+    private Timer lagTimer;
+
+    //类初始化完成后就开始消费消息队列中的订单
+    @PostConstruct
+    private void init() throws UnknownHostException {
+        if(!asyncSeckill){
+            return;
+        }
+        preloadSeckillStock();
+        createOrderGroup();
+        registerMetrics();
+        if(StrUtil.isBlank(consumerName)){
+            consumerName = InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerName + "-" + i));
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running = false;
+        if(seckillOrderExecutor != null){
+            seckillOrderExecutor.shutdownNow();
+        }
+    }
+
+    //把还没结束的秒杀券库存加载到Redis，已存在的key不覆盖（Redis中的库存才是最新的）
+    private void preloadSeckillStock(){
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher voucher : vouchers) {
+            if(isSharded(voucher)){
+                //分片的秒杀券按分片加载
+                List<String> keys = seckillVoucherStockService.stockKeys(voucher.getVoucherId(), voucher.getShards());
+                for (SeckillVoucherStock stock : seckillVoucherStockService.query()
+                        .eq("voucher_id", voucher.getVoucherId()).list()) {
+                    stringRedisTemplate.opsForValue().setIfAbsent(keys.get(stock.getShard()), stock.getStock().toString());
+                }
+                continue;
+            }
+            stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.SECKILL_STOCK_KEY + voucher.getVoucherId(), voucher.getStock().toString());
+        }
+    }
+
+    //创建消费者组，stream不存在时一起创建(XGROUP CREATE ... MKSTREAM)
+    private void createOrderGroup(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    RedisConstants.SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                    RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            //BUSYGROUP，消费者组已经存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
+
+    private void registerMetrics(){
+        orderCounter = meterRegistry.counter("seckill.order.consumed");
+        batchSummary = meterRegistry.summary("seckill.order.batch.size");
+        lagTimer = meterRegistry.timer("seckill.order.lag");
+        //pending-list中已投递但未确认的订单数
+        Gauge.builder("seckill.order.pending", this, VoucherOrderServiceImpl::pendingCount)
+                .register(meterRegistry);
+        //stream中的消息总数
+        Gauge.builder("seckill.order.stream.size", this, VoucherOrderServiceImpl::streamSize)
+                .register(meterRegistry);
+    }
+
+    private double pendingCount(){
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                .pending(RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP);
+        return summary == null ? 0 : summary.getTotalPendingMessages();
+    }
+
+    private double streamSize(){
+        Long size = stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_STREAM);
+        return size == null ? 0 : size;
+    }
+
+    //定时维护订单消息队列：领取长时间没有确认的订单重新处理，再删除已经确认的消息
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream-maintain-interval:PT30S}")
+    public void maintainOrderStream(){
+        if(!asyncSeckill){
+            return;
+        }
+        try {
+            claimIdlePending();
+        } catch (Exception e) {
+            log.error("领取pending-list中的订单失败", e);
+        }
+        try {
+            Long trimmed = stringRedisTemplate.execute(STREAM_TRIM_SCRIPT,
+                    Collections.singletonList(RedisConstants.SECKILL_ORDER_STREAM), RedisConstants.SECKILL_ORDER_GROUP);
+            log.debug("删除已确认的订单消息：{}", trimmed);
+        } catch (Exception e) {
+            log.error("删除已确认的订单消息失败", e);
+        }
+    }
+
+    //分页检查pending-list，领取空闲超过pendingClaimIdle的订单：本节点逐条重试仍失败的，以及已经下线的消费者没有处理完的
+    //投递次数达到maxDeliveries的转入死信队列，避免一直重试，也避免它们堵在pending-list头部，后面的订单领取不到
+    //XCLAIM带最小空闲时间，多个节点同时领取时一条消息只会被一个节点领取
+    private void claimIdlePending(){
+        String lastId = null;
+        int scanned = 0;
+        while (scanned < pendingScanLimit) {
+            //1、从上一页最后的id开始查询一页，第一页从头开始
+            Range<String> range = lastId == null ? Range.unbounded()
+                    : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(RedisConstants.SECKILL_ORDER_STREAM,
+                    RedisConstants.SECKILL_ORDER_GROUP, range, batchSize + 1L);
+            List<RecordId> retryIds = new ArrayList<>();
+            List<RecordId> deadIds = new ArrayList<>();
+            int count = 0;
+            for (PendingMessage message : pending) {
+                //包含上一页的最后一条，跳过
+                if (message.getIdAsString().equals(lastId)) {
+                    continue;
+                }
+                count++;
+                lastId = message.getIdAsString();
+                //2、只处理空闲足够久的，按投递次数分为重试和死信
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(pendingClaimIdle) < 0) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadIds.add(message.getId());
+                } else {
+                    retryIds.add(message.getId());
+                }
+            }
+            scanned += count;
+            //3、领取后重新处理，或转入死信队列
+            if (!retryIds.isEmpty()) {
+                List<MapRecord<String, Object, Object>> records = claim(retryIds);
+                if (!records.isEmpty()) {
+                    log.warn("领取pending-list中空闲的订单，数量：{}", records.size());
+                    handleRecords(records);
+                }
+            }
+            if (!deadIds.isEmpty()) {
+                deadLetter(claim(deadIds));
+            }
+            if (count < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> claim(List<RecordId> ids){
+        String owner = consumerName + "-claim";
+        List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(RedisConstants.SECKILL_ORDER_STREAM,
+                        RedisConstants.SECKILL_ORDER_GROUP, owner, pendingClaimIdle, ids.toArray(new RecordId[0])));
+        if(claimed == null || claimed.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+        for (StringRecord record : claimed) {
+            records.add(MapRecord.create(record.getStream(), new HashMap<Object, Object>(record.getValue()))
+                    .withId(record.getId()));
+        }
+        return records;
+    }
+
+    //多次重试仍失败的订单写入死信队列后确认，原消息id保存在originId字段，需要人工处理
+    private void deadLetter(List<MapRecord<String, Object, Object>> records){
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("originId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(
+                    MapRecord.create(RedisConstants.SECKILL_ORDER_DEAD_STREAM, value));
+            stringRedisTemplate.opsForStream().acknowledge(
+                    RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, record.getId());
+            meterRegistry.counter("seckill.order.dead").increment();
+            log.error("订单多次写入失败，已转入死信队列：{}", record);
+        }
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String name){
+            this.consumer = Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, name);
+        }
+
+        @Override
+        public void run() {
+            //启动时先处理上次没有确认的订单
+            handlePendingList();
+            while (running) {
+                try {
+                    //1、获取消息队列中的订单 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+                    //2、判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1如果获取失败，说明没有消息，继续下一次循环
+                        continue;
+                    }
+                    //3、批量创建订单并ACK
+                    handleRecords(list);
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        //把pending-list从头到尾处理一遍，处理失败的消息留在pending-list中，等下一次再处理
+        private void handlePendingList() {
+            String lastId = "0";
+            while (running) {
+                try {
+                    //1、获取pending-list中的订单 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(RedisConstants.SECKILL_ORDER_STREAM, ReadOffset.from(lastId)));
+                    //2、判断消息获取是否成功
+                    if (list == null || list.isEmpty()) {
+                        //2.1如果获取失败，说明pending-list没有异常消息，结束循环
+                        return;
+                    }
+                    //3、批量创建订单并ACK
+                    handleRecords(list);
+                    lastId = list.get(list.size() - 1).getId().getValue();
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    //批量写入，失败时逐条重试，只ACK写入成功的订单
+    private void handleRecords(List<MapRecord<String, Object, Object>> records){
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> createVoucherOrders(orders));
+            ack(records);
+        } catch (Exception e) {
+            log.error("批量写入订单失败，逐条重试，订单数：{}", orders.size(), e);
+            for (int i = 0; i < records.size(); i++) {
+                VoucherOrder order = orders.get(i);
+                try {
+                    transactionTemplate.executeWithoutResult(
+                            status -> createVoucherOrders(Collections.singletonList(order)));
+                    ack(Collections.singletonList(records.get(i)));
+                } catch (DuplicateKeyException ex) {
+                    //用户已经有这个优惠券的订单，重试也不会成功，直接确认
+                    log.warn("重复的订单，已丢弃：{}", order);
+                    ack(Collections.singletonList(records.get(i)));
+                } catch (Exception ex) {
+                    log.error("写入订单失败，订单：{}", order, ex);
+                }
+            }
+        }
+    }
+
+    //确认消息 XACK stream.orders g1 id...
+    private void ack(List<MapRecord<String, Object, Object>> records){
+        RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(
+                RedisConstants.SECKILL_ORDER_STREAM, RedisConstants.SECKILL_ORDER_GROUP, ids);
+        orderCounter.increment(records.size());
+        batchSummary.record(records.size());
+        //消息id的前半部分是写入时的毫秒时间戳，用它计算从下单到落库的延迟
+        long lag = System.currentTimeMillis() - ids[ids.length - 1].getTimestamp();
+        lagTimer.record(Math.max(lag, 0), TimeUnit.MILLISECONDS);
+    }
+
+    //同一批订单先一条多行INSERT写入，再按优惠券合并扣减库存，需要在事务中调用
+    private void createVoucherOrders(List<VoucherOrder> orders){
+        //0、过滤掉已经写入的订单：写入成功但ACK前宕机时，消息会再次投递
+        Set<Long> persisted = query().select("id")
+                .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .list().stream().map(VoucherOrder::getId).collect(Collectors.toCollection(HashSet::new));
+        if (!persisted.isEmpty()) {
+            orders = orders.stream().filter(order -> !persisted.contains(order.getId())).collect(Collectors.toList());
+            if (orders.isEmpty()) {
+                return;
+            }
+        }
+        //1、批量保存订单，(user_id, voucher_id)唯一索引保证一人一单
+        getBaseMapper().insertBatch(orders);
+        //2、分片库存的订单按优惠券、分片统计扣减数量，Redis已经做过校验，这里失败说明数据不一致，抛异常回滚
+        //  按优惠券id从小到大扣减，不同事务锁库存行的顺序一致
+        Map<Long, Map<Integer, Integer>> countByShard = orders.stream().filter(order -> order.getShard() != null)
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new,
+                        Collectors.groupingBy(VoucherOrder::getShard, TreeMap::new,
+                                Collectors.summingInt(order -> 1))));
+        countByShard.forEach((voucherId, counts) -> {
+            //秒杀券不存在或本地缓存加载失败时抛异常，逐条重试时只影响这个秒杀券的订单，多次失败后转入死信队列
+            SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+            if (!isSharded(voucher)) {
+                throw new IllegalStateException("秒杀券不存在或不是分片库存，优惠券id：" + voucherId);
+            }
+            if (!seckillVoucherStockService.deduct(voucherId, counts)) {
+                throw new IllegalStateException("库存不足，优惠券id：" + voucherId);
+            }
+        });
+        //3、其他订单按优惠券统计本批次要扣减的库存
+        Map<Long, Long> countByVoucher = orders.stream().filter(order -> order.getShard() == null)
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        //4、扣减库存，Redis已经做过校验，这里失败说明数据不一致，抛异常回滚
+        countByVoucher.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId).ge("stock", count).update();
+            if (!success) {
+                throw new IllegalStateException("库存不足，优惠券id：" + voucherId);
+            }
+        });
+    }
 
     @Override
-    public Result seckillVoucher(Long voucherId) {
-        //1、查询优惠券，别人的crud方法，不能直接用
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+    public Result seckillVoucher(Long voucherId, String idempotencyKey) {
+        Long userId = UserHolder.getUser().getId();
+        if(StrUtil.isBlank(idempotencyKey)){
+            Result rejected = admit(voucherId, userId);
+            return rejected != null ? rejected : doSeckillVoucher(voucherId);
+        }
+        //1、用SET NX占住幂等键，同一个幂等键只有第一个请求会真正下单
+        //先于准入控制检查幂等键，已经成功的请求重试时返回订单id，而不是被售罄标记或限流拒绝
+        //占位只设置较短的有效期，下单成功后再延长到idempotencyTtl
+        String key = RedisConstants.SECKILL_IDEMPOTENCY_KEY + userId + ":" + idempotencyKey;
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(
+                key, IDEMPOTENCY_PROCESSING, idempotencyProcessingTtl.toMillis(), TimeUnit.MILLISECONDS);
+        if(!Boolean.TRUE.equals(first)){
+            //2、重试的请求：第一次已经成功则返回同一个订单id
+            String orderId = stringRedisTemplate.opsForValue().get(key);
+            if(orderId == null || IDEMPOTENCY_PROCESSING.equals(orderId)){
+                return Result.fail("请求正在处理中，请稍后再试");
+            }
+            return Result.ok(Long.valueOf(orderId));
+        }
+        //3、第一次请求，下单成功后记录订单id，失败则删除幂等键，允许重试
+        Result result;
+        try {
+            Result rejected = admit(voucherId, userId);
+            result = rejected != null ? rejected : doSeckillVoucher(voucherId);
+        } catch (RuntimeException e) {
+            stringRedisTemplate.delete(key);
+            throw e;
+        }
+        if(Boolean.TRUE.equals(result.getSuccess())){
+            stringRedisTemplate.opsForValue().set(key, result.getData().toString(),
+                    idempotencyTtl.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            stringRedisTemplate.delete(key);
+        }
+        return result;
+    }
+
+    //准入控制，被拒绝时返回失败结果，放行时返回null
+    private Result admit(Long voucherId, Long userId) {
+        //已知售罄直接返回，不再查询数据库
+        if(seckillAdmission.isSoldOut(voucherId)){
+            return Result.fail("库存不足!");
+        }
+        //按优惠券、用户限流，多余的请求不进入下单流程
+        if(!seckillAdmission.tryAcquire(voucherId, userId)){
+            return Result.fail("抢购人数过多，请稍后再试!");
+        }
+        return null;
+    }
+
+    private Result doSeckillVoucher(Long voucherId) {
+        //布隆过滤器判断优惠券一定不存在，不用查询数据库
+        if(!bloomFilterGuard.mightContain(RedisConstants.CACHE_VOUCHER_KEY, voucherId)){
+            return Result.fail("优惠券不存在!");
+        }
+        //1、查询优惠券的秒杀时间，走本地缓存，秒杀期间不查询数据库
+        SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+        if(voucher==null){
+            return Result.fail("优惠券不存在!");
+        }
 
         //2、判断秒杀是否开始
         if(voucher.getBeginTime().isAfter(LocalDateTime.now())){
@@ -61,84 +595,111 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             return Result.fail("秒杀已经结束");
         }
 
-        //4、判断库存是否充足
-        if(voucher.getStock()<1){
-            return Result.fail("库存不足!");
+        //异步秒杀：库存和一人一单交给Redis判断
+        if(asyncSeckill){
+            return asyncSeckillVoucher(voucher);
         }
 
-        //我们选择在调用CreateVoucherOrder之前加锁，因为如果在CreateVoucherOrder里面加锁的话
-        //会先释放锁，然后提交事务，但是因为释放了锁，导致其他线程又获取锁，上一个事务无法提交，就会导致修改不能同步
-        //在调用CreateVoucherOrder之前加锁，可以让事务先提交，然后再释放锁
-        Long userId = UserHolder.getUser().getId();
+        //4、库存以数据库扣减的结果为准，本地缓存中的库存不可靠，售罄后由售罄标记拦截
+        //一人一单由tb_voucher_order的(user_id, voucher_id)唯一索引保证，不再需要按用户加锁
 
-        //不在方法上加锁，因为会大大降低性能
-        // 把锁粒度缩小到userId上，不同的userId不需要加锁，相同的userId才需要加锁
-        //如果只用userId.toString()的话每次都是new一个新对象，即使值一样也不能锁住同一个用户
-        //所以需要加intern，每次都在字符串池里找值一样的字符串地址返回
-//        synchronized(userId.toString().intern()) {//仅锁定当前用户
-
-        //创建锁对象(加userId，锁粒度是用户id)
-//        SimpleRedisLock lock=new SimpleRedisLock("order:"+userId,stringRedisTemplate);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-//        boolean isLock = lock.tryLock(1200);
-        boolean isLock = lock.tryLock();//默认过期时间30秒
-        //判断是否获取锁成功
-        if(!isLock){
-            //获取锁失败，返回错误信息
-            return Result.fail("不允许重复下单");
+        //Spring的事务管理是通过动态代理实现的，如果直接调用CreateVoucherOrder
+        // 这里的事务不会自动实现，因为
+        //seckillVoucher 直接调用 CreateVoucherOrder，
+        //而不是通过 Spring 代理对象调用，因此事务拦截器无法介入
+        //所以我们就得创建一个代理对象，然后用代理对象去调用CreateVoucherOrder
+        //这样CreateVoucherOrder就会被Spring管理启动事务了
+        IVoucherOrderService proxy =(IVoucherOrderService) AopContext.currentProxy();
+        return proxy.CreateVoucherOrder(voucherId);
+    }
+
+    //Lua脚本校验秒杀资格并把订单写入消息队列，有资格就直接返回订单id，订单由后台线程写入数据库
+    private Result asyncSeckillVoucher(SeckillVoucher voucher){
+        Long voucherId = voucher.getVoucherId();
+        Long userId = UserHolder.getUser().getId();
+        //获取订单id
+        long orderId = idGenerator.nextId("order");
+        //1、执行Lua脚本
+        Long result;
+        if(isSharded(voucher)){
+            //分片库存：从用户对应的分片开始依次尝试
+            int shards = voucher.getShards();
+            int start = seckillVoucherStockService.shardOf(userId, shards);
+            List<String> stockKeys = seckillVoucherStockService.stockKeys(voucherId, shards);
+            List<String> keys = new ArrayList<>(shards + 2);
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            keys.add(RedisConstants.SECKILL_ORDER_STREAM);
+            for (int i = 0; i < shards; i++) {
+                keys.add(stockKeys.get((start + i) % shards));
+            }
+            result = stringRedisTemplate.execute(SECKILL_SHARDED_SCRIPT, keys,
+                    userId.toString(), String.valueOf(orderId), voucherId.toString(),
+                    String.valueOf(start), String.valueOf(shards), String.valueOf(streamMaxLen));
+        } else {
+            result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                            RedisConstants.SECKILL_ORDER_KEY + voucherId,
+                            RedisConstants.SECKILL_ORDER_STREAM),
+                    userId.toString(), String.valueOf(orderId), voucherId.toString(), String.valueOf(streamMaxLen));
         }
-        try {
-            //8、返回订单id
-            //Spring的事务管理是通过动态代理实现的，如果直接调用CreateVoucherOrder
-            // 这里的事务不会自动实现，因为
-            //seckillVoucher 直接调用 CreateVoucherOrder，
-            //而不是通过 Spring 代理对象调用，因此事务拦截器无法介入
-            //所以我们就得创建一个代理对象，然后用代理对象去调用CreateVoucherOrder
-            //这样CreateVoucherOrder就会被Spring管理启动事务了
-            IVoucherOrderService proxy =(IVoucherOrderService) AopContext.currentProxy();
-            return proxy.CreateVoucherOrder(voucherId);
-        }finally {
-            //释放锁
-            lock.unlock();
-        }
-//        }
+        //2、判断结果是否为0
+        int r = result == null ? 1 : result.intValue();
+        if(r != 0){
+            //2.1不为0，代表没有购买资格，库存不足时标记售罄
+            if(r == 1){
+                seckillAdmission.markSoldOut(voucherId);
+            }
+            return Result.fail(r == 1 ? "库存不足!" : "不能重复下单");
+        }
+        //3、返回订单id
+        return Result.ok(orderId);
     }
 
     @Transactional
     public Result CreateVoucherOrder(Long voucherId){
-        //5、一人一单
         Long userId = UserHolder.getUser().getId();
 
-        //5.1查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        //5.2判断是否存在
-        if (count>0){
+        //5、先创建订单，一人一单由唯一索引判断，重复购买的请求在这里失败，不会去争抢库存的行锁
+        VoucherOrder voucherOrder = new VoucherOrder();
+        //5.1订单id
+        long orderId = idGenerator.nextId("order");
+        voucherOrder.setId(orderId);
+        //5.2用户id
+        voucherOrder.setUserId(userId);
+        //5.3代金券id
+        voucherOrder.setVoucherId(voucherId);
+        try {
+            //当前Service的crud方法可以直接用
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
             //用户已经购买过了
             return Result.fail("用户已经购买过一次！");
         }
 
-        //6、扣减库存
-        boolean success = seckillVoucherService.update().
-                setSql("stock=stock-1").
-                eq("voucher_id", voucherId).gt("stock",0).update();
+        //6、扣减库存，放在事务的最后，库存行锁持有的时间最短
+        SeckillVoucher voucher = seckillVoucherCache.get(voucherId);
+        boolean success;
+        if(isSharded(voucher)){
+            //分片库存：从用户对应的分片开始扣，所有分片都没有库存才失败
+            success = seckillVoucherStockService.deduct(voucherId, Collections.singletonMap(
+                    seckillVoucherStockService.shardOf(userId, voucher.getShards()), 1));
+        } else {
+            success = seckillVoucherService.update().
+                    setSql("stock=stock-1").
+                    eq("voucher_id", voucherId).gt("stock",0).update();
+        }
         if(!success){
-            //扣减失败
+            //扣减失败，回滚已经插入的订单，并标记售罄
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            seckillAdmission.markSoldOut(voucherId);
             return Result.fail("库存不足！");
         }
 
-        //7、创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //7.1订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        //7.2用户id
-        voucherOrder.setUserId(userId);
-        //7.3代金券id
-        voucherOrder.setVoucherId(voucherId);
-        //当前Service的crud方法可以直接用
-        save(voucherOrder);
-
+        //7、返回订单id
         return Result.ok(orderId);
     }
+
+    private static boolean isSharded(SeckillVoucher voucher){
+        return voucher != null && voucher.getShards() != null && voucher.getShards() > 0;
+    }
 }
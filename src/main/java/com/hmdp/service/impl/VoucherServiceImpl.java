@@ -6,7 +6,12 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.ISeckillVoucherStockService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.TransactionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -27,6 +32,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private ISeckillVoucherStockService seckillVoucherStockService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //新增秒杀券的库存分片数，大于1时把库存拆到多个分片，分散热点秒杀券的行锁竞争
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -46,6 +61,57 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucher.setShards(stockShards > 1 ? stockShards : 0);
         seckillVoucherService.save(seckillVoucher);
+        if (seckillVoucher.getShards() > 0) {
+            // 分片保存库存到数据库和Redis中
+            seckillVoucherStockService.resetShards(voucher.getId(), stockShards, voucher.getStock());
+            return;
+        }
+        // 事务提交后保存秒杀库存到Redis中，供异步秒杀的Lua脚本判断库存
+        String stock = voucher.getStock().toString();
+        TransactionUtils.afterCommit(() -> stringRedisTemplate.opsForValue()
+                .set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), stock));
+    }
+
+    @Override
+    @Transactional
+    public Result updateSeckillVoucher(Voucher voucher) {
+        Long id = voucher.getId();
+        if (id == null) {
+            return Result.fail("优惠券id不能为空！");
+        }
+        // stock是补货数量，在数据库和Redis的当前库存上累加，不覆盖
+        // 异步秒杀时消息队列中还有已经扣过Redis库存、还没扣数据库库存的订单，覆盖会让两边的库存不一致
+        Integer delta = voucher.getStock();
+        if (delta != null && delta <= 0) {
+            return Result.fail("补货数量必须大于0！");
+        }
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(id);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        // 更新优惠券
+        updateById(voucher);
+        // 更新秒杀时间，累加库存
+        if (delta != null || voucher.getBeginTime() != null || voucher.getEndTime() != null) {
+            seckillVoucherService.update()
+                    .set(voucher.getBeginTime() != null, "begin_time", voucher.getBeginTime())
+                    .set(voucher.getEndTime() != null, "end_time", voucher.getEndTime())
+                    .setSql(delta != null, "stock = stock + " + delta)
+                    .eq("voucher_id", id).update();
+        }
+        if (delta == null) {
+            return Result.ok();
+        }
+        // 分片的秒杀券把补货数量平均加到各分片
+        if (seckillVoucher.getShards() != null && seckillVoucher.getShards() > 0) {
+            seckillVoucherStockService.addStock(id, seckillVoucher.getShards(), delta);
+            return Result.ok();
+        }
+        // 事务提交后累加Redis中的秒杀库存，回滚时Redis保持不变
+        TransactionUtils.afterCommit(() -> stringRedisTemplate.opsForValue()
+                .increment(RedisConstants.SECKILL_STOCK_KEY + id, delta));
+        return Result.ok();
     }
 }
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * 管理接口的拦截器，只有配置的管理员用户可以调用，在登录拦截器之后执行
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    //管理员用户id
+    private final Set<Long> adminUserIds;
+
+    //拦截的请求方法，同一个路径下其他方法的接口不拦截
+    private final String[] methods;
+
+    public AdminInterceptor(Set<Long> adminUserIds, String... methods) {
+        this.adminUserIds = adminUserIds;
+        this.methods = methods;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //只拦截指定方法的请求
+        if(Arrays.stream(methods).noneMatch(method -> method.equalsIgnoreCase(request.getMethod()))){
+            return true;
+        }
+        //1、没有登录
+        if(UserHolder.getUser()==null){
+            response.setStatus(401);
+            return false;
+        }
+        //2、不是管理员
+        if(!adminUserIds.contains(UserHolder.getUser().getId())){
+            response.setStatus(403);
+            return false;
+        }
+        //放行
+        return true;
+    }
+}
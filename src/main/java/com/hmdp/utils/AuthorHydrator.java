@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.User;
+import com.hmdp.service.IUserService;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 批量填充博文的作者信息和当前用户是否点赞
+ * 1、作者的昵称、头像从用户缓存中一次MGET查询，未命中的一次IN查询数据库
+ * 2、是否点赞用一次pipeline查询所有博文的点赞集合
+ * 一页数据无论多少条，都只访问固定几次Redis和数据库，博文列表、关注推送、评论等接口共用
+ */
+@Component
+public class AuthorHydrator {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 填充博文的作者昵称、头像和当前用户是否点赞
+     */
+    public void hydrate(List<Blog> blogs) {
+        if (blogs == null || blogs.isEmpty()) {
+            return;
+        }
+        //1、查询所有作者，同一个作者只查一次
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = getUsers(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        //2、查询当前用户是否点赞
+        fillLiked(blogs);
+    }
+
+    /**
+     * 批量查询用户的昵称和头像
+     * @return 按userIds顺序排列的用户，不存在的用户不返回
+     */
+    public List<UserDTO> getUsers(List<Long> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    //用一次pipeline查询当前用户在每篇博文点赞集合中的分数，未登录时都是未点赞
+    private void fillLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            blogs.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(RedisConstants.BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        List<Object> results = scores == null ? new ArrayList<>() : scores;
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(i < results.size() && results.get(i) != null);
+        }
+    }
+}
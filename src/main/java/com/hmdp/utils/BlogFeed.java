@@ -0,0 +1,306 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IFollowService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 关注推送（推拉结合）
+ * 1、推：普通作者发布博文时，把博文id推送到每个粉丝的收件箱 feed:粉丝id（zset，score是发布时间），收件箱只保留最新的inbox-max-size条
+ * 2、拉：粉丝数达到big-author-threshold的大V不推送，博文只写入自己的发件箱 feed:outbox:作者id，粉丝读取时再拉取
+ * 3、读取时把收件箱和关注的大V发件箱按时间戳多路归并，按时间戳游标滚动分页
+ * 所有作者的博文都会写入发件箱，作者成为大V后，之前推送过的博文和发件箱中的重复，归并时去重
+ */
+@Slf4j
+@Component
+public class BlogFeed {
+
+    //按时间倒序，时间相同时按博文id倒序，保证同一时间戳的博文在每次分页中顺序一致
+    private static final Comparator<FeedItem> NEWEST_FIRST = Comparator
+            .comparingLong((FeedItem item) -> item.time).reversed()
+            .thenComparing(Comparator.comparingLong((FeedItem item) -> item.blogId).reversed());
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private FollowMapper followMapper;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //推送的线程数
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int fanoutThreads;
+
+    //每次查询、推送的粉丝数
+    @Value("${hmdp.feed.fanout-batch-size:1000}")
+    private int fanoutBatchSize;
+
+    //粉丝数达到这个值的作者不再推送，由粉丝读取时拉取
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private long bigAuthorThreshold;
+
+    //每个收件箱、发件箱最多保留的博文数
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize;
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private long outboxMaxSize;
+
+    private ThreadPoolExecutor fanoutExecutor;
+
+    //写扩散：每篇博文写入的收件箱数，以及总的写入次数
+    private DistributionSummary fanoutSummary;
+    private Counter fanoutWrites;
+
+    //读取一页关注推送的耗时，统计p99
+    private Timer readTimer;
+
+    @PostConstruct
+    private void init() {
+        //队列满时由发布博文的线程自己推送，不丢弃
+        fanoutExecutor = new ThreadPoolExecutor(fanoutThreads, fanoutThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(10000), r -> {
+                    Thread thread = new Thread(r, "feed-fanout");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        fanoutSummary = DistributionSummary.builder("feed.fanout.size")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        fanoutWrites = meterRegistry.counter("feed.fanout.writes");
+        readTimer = Timer.builder("feed.read")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        fanoutExecutor.shutdown();
+    }
+
+    /**
+     * 异步发布博文：写入作者的发件箱，普通作者再推送给所有粉丝
+     * @param timestamp 发布时间，作为收件箱、发件箱中的score
+     */
+    public void publish(Long authorId, Long blogId, long timestamp) {
+        fanoutExecutor.execute(() -> {
+            try {
+                String member = blogId.toString();
+                //1、写入发件箱，只保留最新的outbox-max-size条
+                String outboxKey = RedisConstants.FEED_OUTBOX_KEY + authorId;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    conn.zAdd(outboxKey, timestamp, member);
+                    conn.zRemRange(outboxKey, 0, -outboxMaxSize - 1);
+                    return null;
+                });
+                //2、判断是不是大V，是大V就不推送
+                if (isBigAuthor(authorId)) {
+                    fanoutSummary.record(0);
+                    return;
+                }
+                //3、推送给粉丝
+                fanout(authorId, member, timestamp);
+            } catch (Exception e) {
+                log.error("推送博文失败，作者：{}，博文：{}", authorId, blogId, e);
+            }
+        });
+    }
+
+    //已经是大V的直接返回；否则统计粉丝数，达到阈值时标记为大V
+    //大V不会再变回普通作者，否则粉丝会看不到他之前只写入发件箱的博文
+    private boolean isBigAuthor(Long authorId) {
+        String member = authorId.toString();
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(RedisConstants.FEED_BIG_AUTHORS_KEY, member))) {
+            return true;
+        }
+        Integer followers = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", authorId));
+        if (followers != null && followers >= bigAuthorThreshold) {
+            stringRedisTemplate.opsForSet().add(RedisConstants.FEED_BIG_AUTHORS_KEY, member);
+            log.info("作者粉丝数达到{}，改为拉模式，作者：{}", followers, authorId);
+            return true;
+        }
+        return false;
+    }
+
+    private void fanout(Long authorId, String blogId, long timestamp) {
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            //1、按主键分页查询粉丝 follow_user_id = 作者，用上一页最后的id作为游标，不用OFFSET
+            List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                    .select("id", "user_id")
+                    .eq("follow_user_id", authorId).gt("id", lastId)
+                    .orderByAsc("id").last("LIMIT " + fanoutBatchSize));
+            if (!follows.isEmpty()) {
+                //2、一次pipeline推送到这一页粉丝的收件箱，并裁剪收件箱
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Follow follow : follows) {
+                        String inboxKey = RedisConstants.FEED_KEY + follow.getUserId();
+                        conn.zAdd(inboxKey, timestamp, blogId);
+                        conn.zRemRange(inboxKey, 0, -inboxMaxSize - 1);
+                    }
+                    return null;
+                });
+                total += follows.size();
+                fanoutWrites.increment(follows.size());
+            }
+            if (follows.size() < fanoutBatchSize) {
+                fanoutSummary.record(total);
+                return;
+            }
+            lastId = follows.get(follows.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 滚动分页读取关注推送：收件箱和关注的大V发件箱多路归并
+     * @param max 上一页最小的时间戳，第一页传当前时间
+     * @param offset 上一页中与最小时间戳相同的条数，需要跳过
+     * @param count 每页条数
+     * @return list是按时间倒序的博文id，minTime和offset是下一页的游标
+     */
+    public ScrollResult read(Long userId, long max, int offset, int count) {
+        long begin = System.nanoTime();
+        try {
+            //1、关注的大V：SINTER follows:userId feed:big-authors，关注集合丢失时先从数据库重建
+            followService.loadFollows(userId);
+            Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(
+                    RedisConstants.FOLLOW_KEY + userId, RedisConstants.FEED_BIG_AUTHORS_KEY);
+            List<String> keys = new ArrayList<>();
+            keys.add(RedisConstants.FEED_KEY + userId);
+            if (bigAuthors != null) {
+                bigAuthors.forEach(authorId -> keys.add(RedisConstants.FEED_OUTBOX_KEY + authorId));
+            }
+            //2、一次pipeline从每个来源取出不超过max的前offset+count条，合起来一定包含这一页
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String key : keys) {
+                    conn.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count);
+                }
+                return null;
+            });
+            //3、多路归并，跳过上一页已经返回的offset条
+            return merge(results, max, offset, count);
+        } finally {
+            readTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ScrollResult merge(List<Object> results, long max, int offset, int count) {
+        //每个来源已经按时间倒序，堆中放每个来源的当前元素
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(Comparator.comparing((Cursor c) -> c.head, NEWEST_FIRST));
+        for (Object result : results) {
+            if (result == null) {
+                continue;
+            }
+            Iterator<FeedItem> iterator = ((Set<Object>) result).stream()
+                    .map(tuple -> FeedItem.of((ZSetOperations.TypedTuple<String>) tuple)).iterator();
+            if (iterator.hasNext()) {
+                heap.add(new Cursor(iterator));
+            }
+        }
+        List<Long> ids = new ArrayList<>(count);
+        Set<Long> seen = new HashSet<>();
+        long minTime = max;
+        int os = offset;
+        int skipped = 0;
+        while (!heap.isEmpty() && ids.size() < count) {
+            Cursor cursor = heap.poll();
+            FeedItem item = cursor.head;
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            //同一篇博文可能同时在收件箱和发件箱中
+            if (!seen.add(item.blogId)) {
+                continue;
+            }
+            //上一页最后那个时间戳的前offset条已经返回过了
+            if (item.time == max && skipped < offset) {
+                skipped++;
+                continue;
+            }
+            ids.add(item.blogId);
+            //统计与最小时间戳相同的条数，下一页跳过它们
+            if (item.time == minTime) {
+                os++;
+            } else {
+                minTime = item.time;
+                os = 1;
+            }
+        }
+        ScrollResult result = new ScrollResult();
+        result.setList(ids.isEmpty() ? Collections.emptyList() : ids);
+        result.setMinTime(minTime);
+        result.setOffset(os);
+        return result;
+    }
+
+    private static class FeedItem {
+        private final long blogId;
+        private final long time;
+
+        private FeedItem(long blogId, long time) {
+            this.blogId = blogId;
+            this.time = time;
+        }
+
+        private static FeedItem of(ZSetOperations.TypedTuple<String> tuple) {
+            return new FeedItem(Long.parseLong(tuple.getValue()), tuple.getScore().longValue());
+        }
+    }
+
+    //一个来源的读取位置
+    private static class Cursor {
+        private final Iterator<FeedItem> iterator;
+        private FeedItem head;
+
+        private Cursor(Iterator<FeedItem> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        private boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 热门博文排行：Redis的zset，member是博文id，score是热度
+ * 1、点赞、评论、发布时增量累加热度，不再每次请求都ORDER BY liked
+ * 2、定时把所有热度乘以衰减系数（ZUNIONSTORE带权重），越早的热度占比越小，并只保留前max-size篇
+ * 3、按排名分页，ZREVRANGE按排名取数据是O(log(N)+M)，翻到多深都一样快
+ */
+@Slf4j
+@Component
+public class BlogHotRanking {
+
+    //衰减任务的标记，一个周期内只有一个节点执行衰减
+    private static final String DECAY_KEY = RedisConstants.BLOG_HOT_KEY + ":decay";
+
+    //重建排行的标记，避免多个节点同时重建
+    private static final String REBUILD_KEY = RedisConstants.BLOG_HOT_KEY + ":rebuild";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    //一次点赞、一条评论、发布博文增加的热度
+    @Value("${hmdp.blog.hot.like-weight:1}")
+    private double likeWeight;
+    @Value("${hmdp.blog.hot.comment-weight:2}")
+    private double commentWeight;
+    @Value("${hmdp.blog.hot.post-weight:10}")
+    private double postWeight;
+
+    //每个衰减周期热度乘以的系数
+    @Value("${hmdp.blog.hot.decay-factor:0.9}")
+    private double decayFactor;
+
+    //衰减周期
+    @Value("${hmdp.blog.hot.decay-interval:PT1H}")
+    private Duration decayInterval;
+
+    //排行中最多保留的博文数
+    @Value("${hmdp.blog.hot.max-size:10000}")
+    private int maxSize;
+
+    public double getLikeWeight() {
+        return likeWeight;
+    }
+
+    /**
+     * 发布博文后加入排行
+     */
+    public void onPost(Long blogId) {
+        stringRedisTemplate.opsForZSet().incrementScore(RedisConstants.BLOG_HOT_KEY, blogId.toString(), postWeight);
+    }
+
+    /**
+     * 评论后增加热度
+     */
+    public void onComment(Long blogId) {
+        stringRedisTemplate.opsForZSet().incrementScore(RedisConstants.BLOG_HOT_KEY, blogId.toString(), commentWeight);
+    }
+
+    /**
+     * 按热度从高到低分页查询博文id
+     * @param current 页码，从1开始
+     */
+    public List<Long> page(int current, int size) {
+        long start = (long) (current - 1) * size;
+        Set<String> ids = stringRedisTemplate.opsForZSet()
+                .reverseRange(RedisConstants.BLOG_HOT_KEY, start, start + size - 1);
+        if ((ids == null || ids.isEmpty()) && current == 1 && rebuild()) {
+            //排行不存在（第一次启动或Redis数据丢失），从数据库重建后再查一次
+            ids = stringRedisTemplate.opsForZSet()
+                    .reverseRange(RedisConstants.BLOG_HOT_KEY, start, start + size - 1);
+        }
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return ids.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    //定时衰减热度，并删除排在max-size之后的博文
+    @Scheduled(fixedDelayString = "${hmdp.blog.hot.decay-interval:PT1H}",
+            initialDelayString = "${hmdp.blog.hot.decay-interval:PT1H}")
+    public void decay() {
+        //1、一个周期内只有一个节点执行，标记比周期稍短，下一个周期能再次获取
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(DECAY_KEY, "1",
+                decayInterval.toMillis() * 9 / 10, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(first)) {
+            return;
+        }
+        try {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(RedisConstants.BLOG_HOT_KEY))) {
+                rebuild();
+                return;
+            }
+            //2、ZUNIONSTORE blog:hot 1 blog:hot WEIGHTS factor，在Redis中原子完成
+            stringRedisTemplate.opsForZSet().unionAndStore(RedisConstants.BLOG_HOT_KEY, Collections.emptyList(),
+                    RedisConstants.BLOG_HOT_KEY, RedisZSetCommands.Aggregate.SUM,
+                    RedisZSetCommands.Weights.of(decayFactor));
+            //3、只保留前max-size篇
+            stringRedisTemplate.opsForZSet().removeRange(RedisConstants.BLOG_HOT_KEY, 0, -maxSize - 1);
+        } catch (Exception e) {
+            log.error("热门博文热度衰减失败", e);
+        }
+    }
+
+    /**
+     * 用数据库中的点赞数、评论数重建排行，只有一个节点执行
+     * @return 是否执行了重建
+     */
+    private boolean rebuild() {
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(REBUILD_KEY, "1", 1, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(first)) {
+            return false;
+        }
+        List<Blog> blogs = blogMapper.selectList(new QueryWrapper<Blog>()
+                .select("id", "liked", "comments")
+                .orderByDesc("liked")
+                .last("LIMIT " + maxSize));
+        if (blogs.isEmpty()) {
+            return true;
+        }
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(blogs.size());
+        for (Blog blog : blogs) {
+            double score = likeWeight * nullToZero(blog.getLiked()) + commentWeight * nullToZero(blog.getComments());
+            tuples.add(new DefaultTypedTuple<>(blog.getId().toString(), score));
+        }
+        stringRedisTemplate.opsForZSet().add(RedisConstants.BLOG_HOT_KEY, tuples);
+        log.info("重建热门博文排行，博文数：{}", blogs.size());
+        return true;
+    }
+
+    private static int nullToZero(Integer value) {
+        return value == null ? 0 : value;
+    }
+}
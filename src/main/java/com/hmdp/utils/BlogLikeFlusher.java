@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.mapper.BlogMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 点赞数的异步写回：点赞时只在Redis中累加每篇博文的增量，定时把增量合并后批量写入tb_blog
+ * 一篇博文在一个周期内不管被点赞多少次，只更新一次数据库
+ * 1、多个节点只有获取到锁的节点执行，每次把增量改名为本次任务专用的hash，写回失败的hash留在待写回集合中下次重试
+ * 2、每个批次的UPDATE和批次记录在同一个事务中写入tb_blog_like_flush，重试时跳过已经写入的批次，不会重复累加
+ * 3、每个批次写入后删除对应博文的缓存，博文的点赞数在下次查询时从数据库重建
+ */
+@Slf4j
+@Component
+public class BlogLikeFlusher {
+
+    //写回任务专用的增量hash：blog:liked:delta:flushing:任务id
+    private static final String FLUSHING_KEY_PREFIX = RedisConstants.BLOG_LIKED_DELTA_KEY + ":flushing:";
+
+    //还没写回完成的增量hash的集合
+    private static final String PENDING_KEY = RedisConstants.BLOG_LIKED_DELTA_KEY + ":pending";
+
+    private static final DefaultRedisScript<List> FLUSH_SCRIPT;
+    static {
+        FLUSH_SCRIPT = new DefaultRedisScript<>();
+        FLUSH_SCRIPT.setLocation(new ClassPathResource("like_flush.lua"));
+        FLUSH_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    //每条UPDATE语句最多更新的博文数
+    @Value("${hmdp.blog.like-flush-batch-size:500}")
+    private int batchSize;
+
+    @Scheduled(fixedDelayString = "${hmdp.blog.like-flush-interval:PT5S}")
+    @SuppressWarnings("unchecked")
+    public void flush() {
+        //1、获取锁，其他节点正在写回时跳过这一次，看门狗续期直到写回结束
+        ILock lock = redisLockFactory.getLock("blog:like-flush");
+        try {
+            if (!lock.tryLock(0, -1, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            //2、领取当前的增量，返回所有待写回的hash
+            List<String> keys = stringRedisTemplate.execute(FLUSH_SCRIPT,
+                    Arrays.asList(RedisConstants.BLOG_LIKED_DELTA_KEY, PENDING_KEY),
+                    FLUSHING_KEY_PREFIX + UUID.randomUUID().toString(true));
+            if (keys == null) {
+                return;
+            }
+            //3、逐个写回，一个失败不影响其他的
+            for (String key : keys) {
+                try {
+                    flush(key);
+                } catch (Exception e) {
+                    log.error("点赞数写回数据库失败，key：{}", key, e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("点赞数写回数据库失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //写回一个增量hash，领取后不会再有写入，重试时按相同的顺序分批，批次序号不变
+    private void flush(String key) {
+        String runId = key.substring(FLUSHING_KEY_PREFIX.length());
+        //1、按博文id排序，增量为0的（点赞后又取消）跳过
+        Map<Long, Long> deltas = new TreeMap<>();
+        stringRedisTemplate.opsForHash().entries(key).forEach((id, delta) -> {
+            long value = Long.parseLong(delta.toString());
+            if (value != 0) {
+                deltas.put(Long.valueOf(id.toString()), value);
+            }
+        });
+        //2、分批写入数据库
+        Map<Long, Long> batch = new LinkedHashMap<>();
+        int index = 0;
+        for (Map.Entry<Long, Long> entry : deltas.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() >= batchSize) {
+                write(runId + ":" + index++, batch);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(runId + ":" + index, batch);
+        }
+        //3、全部写入成功，先删除增量，再删除批次记录，中间宕机时增量已经不存在，不会重复累加
+        stringRedisTemplate.delete(key);
+        stringRedisTemplate.opsForSet().remove(PENDING_KEY, key);
+        blogMapper.deleteLikeFlush(runId);
+    }
+
+    //在一个事务中记录批次并累加点赞数，批次已经记录过说明上次写入成功，直接跳过
+    private void write(String flushId, Map<Long, Long> batch) {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (blogMapper.insertLikeFlush(flushId) > 0) {
+                blogMapper.updateLikedBatch(batch);
+            }
+        });
+        //事务提交后删除这些博文的缓存，查询时重建，页面上的点赞数不用等缓存逻辑过期
+        batch.keySet().forEach(id -> cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id));
+        batch.clear();
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于位数组的布隆过滤器，元素是long类型的id，线程安全
+ * 判断不存在时一定不存在，判断存在时有fpp的概率误判
+ */
+public class BloomFilter {
+
+    //位数组，每个long保存64位
+    private final AtomicLongArray bits;
+
+    //位数组长度
+    private final long bitSize;
+
+    //哈希函数个数
+    private final int numHashFunctions;
+
+    //已经置为1的位数，用来估算当前的误判率
+    private final AtomicLong bitCount = new AtomicLong();
+
+    /**
+     * @param expectedInsertions 预计插入的元素个数
+     * @param fpp 期望的误判率，比如0.01
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0) {
+            expectedInsertions = 1;
+        }
+        //m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    public void put(long value) {
+        long hash64 = mix(value);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+        for (int i = 1; i <= numHashFunctions; i++) {
+            long index = index(hash1 + i * hash2);
+            if (setBit(index)) {
+                bitCount.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean mightContain(long value) {
+        long hash64 = mix(value);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+        for (int i = 1; i <= numHashFunctions; i++) {
+            long index = index(hash1 + i * hash2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //按已经置为1的位数估算的误判率 (bitCount/m)^k
+    public double expectedFpp() {
+        return Math.pow((double) bitCount.get() / bitSize, numHashFunctions);
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int numHashFunctions() {
+        return numHashFunctions;
+    }
+
+    //位数组占用的内存字节数
+    public long memoryBytes() {
+        return bitSize / 8;
+    }
+
+    private long index(int combinedHash) {
+        //负数取反，保证下标非负
+        if (combinedHash < 0) {
+            combinedHash = ~combinedHash;
+        }
+        return combinedHash % bitSize;
+    }
+
+    //把对应位置为1，返回这一位原来是不是0
+    private boolean setBit(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        while (true) {
+            long old = bits.get(i);
+            if ((old & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(i, old, old | mask)) {
+                return true;
+            }
+        }
+    }
+
+    //murmur3的fmix64，让连续的id也能均匀分散
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用布隆过滤器解决缓存穿透：id不在过滤器中就一定不存在，直接返回，不再访问Redis和数据库
+ * 过滤器保存在本地内存中，启动时从数据库分页加载id，之后定时重建
+ * 新增数据时广播给所有节点（包括本节点）加入过滤器，广播丢失时由定时重建补上
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard {
+
+    //每次从数据库查询的id数
+    private static final int PAGE_SIZE = 1000;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //是否开启布隆过滤器
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    //预计的id数量，超出后误判率会升高，定时重建时会按实际数量扩容
+    @Value("${hmdp.bloom.expected-insertions:100000}")
+    private long expectedInsertions;
+
+    //期望的误判率
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    //key前缀 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private Counter rejectedCounter;
+
+    private static class Filter {
+        private final BaseMapper<?> mapper;
+        //正在使用的过滤器，还没构建完成时为null，此时全部放行
+        private volatile BloomFilter current;
+        //正在重建的过滤器，重建期间新增的id同时写入两个过滤器
+        private volatile BloomFilter building;
+
+        Filter(BaseMapper<?> mapper) {
+            this.mapper = mapper;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        filters.put(RedisConstants.CACHE_SHOP_KEY, new Filter(shopMapper));
+        filters.put(RedisConstants.CACHE_VOUCHER_KEY, new Filter(voucherMapper));
+        rejectedCounter = meterRegistry.counter("bloom.filter.rejected");
+        filters.forEach((prefix, filter) -> {
+            Gauge.builder("bloom.filter.memory", filter, f -> f.current == null ? 0 : f.current.memoryBytes())
+                    .tag("name", prefix).baseUnit("bytes").register(meterRegistry);
+            Gauge.builder("bloom.filter.fpp", filter, f -> f.current == null ? 0 : f.current.expectedFpp())
+                    .tag("name", prefix).register(meterRegistry);
+        });
+        //其他节点新增数据时，本节点同步加入，消息格式：key前缀 + id
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(':') + 1;
+            addLocal(body.substring(0, index), Long.valueOf(body.substring(index)));
+        }, new ChannelTopic(RedisConstants.BLOOM_ADD_CHANNEL));
+    }
+
+    //应用启动完成后构建
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        rebuildAll();
+    }
+
+    //定时重建，清理已经删除的id，并按实际数量重新分配位数组
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval:PT30M}",
+            fixedDelayString = "${hmdp.bloom.rebuild-interval:PT30M}")
+    public void rebuildAll() {
+        filters.forEach(this::rebuild);
+    }
+
+    private void rebuild(String prefix, Filter filter) {
+        try {
+            long count = filter.mapper.selectCount(null);
+            BloomFilter bloomFilter = new BloomFilter(Math.max(expectedInsertions, count * 2), fpp);
+            filter.building = bloomFilter;
+            //按id分页查询，避免一次加载全部数据
+            long lastId = 0;
+            long loaded = 0;
+            while (true) {
+                List<Object> ids = selectIds(filter.mapper, lastId);
+                for (Object id : ids) {
+                    lastId = ((Number) id).longValue();
+                    bloomFilter.put(lastId);
+                }
+                loaded += ids.size();
+                if (ids.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            filter.current = bloomFilter;
+            filter.building = null;
+            log.info("布隆过滤器{}构建完成，id数：{}，位数：{}，哈希函数个数：{}，内存：{}字节，预计误判率：{}",
+                    prefix, loaded, bloomFilter.bitSize(), bloomFilter.numHashFunctions(),
+                    bloomFilter.memoryBytes(), bloomFilter.expectedFpp());
+        } catch (Exception e) {
+            filter.building = null;
+            log.error("布隆过滤器{}构建失败", prefix, e);
+        }
+    }
+
+    //查询大于lastId的一页id
+    private static <T> List<Object> selectIds(BaseMapper<T> mapper, long lastId) {
+        return mapper.selectObjs(new QueryWrapper<T>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + PAGE_SIZE));
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param keyPrefix 缓存key的前缀
+     * @param id id值
+     * @return false代表一定不存在，没有对应的过滤器或过滤器还没构建完成时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        if (!enabled || !(id instanceof Number)) {
+            return true;
+        }
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null || filter.current == null) {
+            return true;
+        }
+        if (filter.current.mightContain(((Number) id).longValue())) {
+            return true;
+        }
+        rejectedCounter.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后加入过滤器，先加入本节点，再通知其他节点
+     */
+    public void put(String keyPrefix, Long id) {
+        if (!enabled || id == null || !filters.containsKey(keyPrefix)) {
+            return;
+        }
+        addLocal(keyPrefix, id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_CHANNEL, keyPrefix + id);
+    }
+
+    private void addLocal(String keyPrefix, Long id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        BloomFilter current = filter.current;
+        if (current != null) {
+            current.put(id);
+        }
+        BloomFilter building = filter.building;
+        if (building != null) {
+            building.put(id);
+        }
+    }
+}
@@ -1,19 +1,40 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
@@ -21,26 +42,195 @@ public class CacheClient {
 
     private StringRedisTemplate stringRedisTemplate;
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR= Executors.newFixedThreadPool(10);
+    //读写缓存数据，值是编码后的字节
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    //写入时使用配置的编码，读取时按数据格式自动选择
+    private final CacheCodecs codecs;
+
+    //编码后写入Redis的字节数，用来比较不同编码的效果
+    private final DistributionSummary valueSize;
+
+    //空值，表示数据库中不存在，用于解决缓存穿透
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    private RedisMessageListenerContainer listenerContainer;
+
+    private MeterRegistry meterRegistry;
+
+    private BloomFilterGuard bloomFilterGuard;
+
+    private static final String CACHE_KEY_PREFIX = "cache:";
+    private static final String LOCK_KEY_PREFIX = "lock:";
+
+    //重建锁的值前缀，区分不同节点
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    //释放锁的Lua脚本，锁的值一致时才删除
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static{
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    //缓存重建任务的调度器，有界队列并按key去重
+    private CacheRebuildScheduler rebuildScheduler;
+
+    //是否开启本地一级缓存，开启后命中的数据直接返回反序列化好的对象，不再访问Redis
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localCacheEnabled;
+
+    //每个key前缀的本地缓存最多保存的条数
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localCacheMaximumSize;
+
+    //本地缓存写入后的存活时间，也是其他节点更新后本节点最多读到旧数据的时间
+    @Value("${hmdp.cache.local.ttl:30s}")
+    private Duration localCacheTtl;
+
+    //缓存重建的超时时间，也是重建锁的有效期
+    @Value("${hmdp.cache.rebuild.timeout:10s}")
+    private Duration rebuildTimeout;
+
+    //缓存未命中时，等待同一个key其他请求查询结果的最长时间
+    @Value("${hmdp.cache.load-timeout:3s}")
+    private Duration loadTimeout;
+
+    //合并同一个key并发的缓存重建请求
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    //抽样统计逻辑过期缓存的访问次数，供预热任务提前刷新热点key
+    private final HotKeyTracker hotKeyTracker;
+
+    //本地缓存，每个key前缀一个，便于分别统计命中率
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer,
+                       MeterRegistry meterRegistry, BloomFilterGuard bloomFilterGuard,
+                       CacheRebuildScheduler rebuildScheduler,
+                       @Value("${hmdp.cache.codec:json}") String codec,
+                       @Value("${hmdp.cache.compress-threshold:512}") int compressThreshold,
+                       @Value("${hmdp.cache.hot-key.sample-rate:10}") int hotKeySampleRate,
+                       @Value("${hmdp.cache.hot-key.max-keys:100000}") int hotKeyMaxKeys){
         this.stringRedisTemplate=stringRedisTemplate;
+        this.cacheRedisTemplate=cacheRedisTemplate;
+        this.codecs=new CacheCodecs(codec, compressThreshold);
+        this.valueSize=DistributionSummary.builder("cache.value.size")
+                .baseUnit("bytes")
+                .tag("codec", codec)
+                .register(meterRegistry);
+        this.listenerContainer=listenerContainer;
+        this.meterRegistry=meterRegistry;
+        this.bloomFilterGuard=bloomFilterGuard;
+        this.rebuildScheduler=rebuildScheduler;
+        this.hotKeyTracker=new HotKeyTracker(hotKeySampleRate, hotKeyMaxKeys);
+    }
+
+    /**
+     * 取出上一个统计周期内访问最多的id，并开始新的统计周期
+     * @param keyPrefix key前缀
+     * @param n 返回的个数
+     * @return 按访问次数从高到低排列的id
+     */
+    public List<String> drainHotKeys(String keyPrefix, int n){
+        return hotKeyTracker.drainTop(keyPrefix, n);
     }
 
-    //将任意java对象序列化为json并存储在String类型的key中，并且可以设置TTL过期时间
+    //订阅缓存失效消息，其他节点删除缓存时，本节点同步删除本地缓存
+    @PostConstruct
+    private void init(){
+        if(!localCacheEnabled){
+            return;
+        }
+        listenerContainer.addMessageListener(
+                (message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    //获取key前缀对应的本地缓存，按大小和写入时间淘汰
+    private Cache<String, Object> localCache(String keyPrefix){
+        return localCaches.computeIfAbsent(keyPrefix, prefix -> {
+            Cache<String, Object> cache = Caffeine.newBuilder()
+                    .maximumSize(localCacheMaximumSize)
+                    .expireAfterWrite(localCacheTtl)
+                    .recordStats()
+                    .build();
+            //命中、未命中、淘汰次数，指标名cache.gets、cache.evictions，tag cache=key前缀
+            CaffeineCacheMetrics.monitor(meterRegistry, cache, prefix);
+            return cache;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R getLocal(String keyPrefix, String key){
+        if(!localCacheEnabled){
+            return null;
+        }
+        return (R) localCache(keyPrefix).getIfPresent(key);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value){
+        if(localCacheEnabled && value != null){
+            localCache(keyPrefix).put(key, value);
+        }
+    }
+
+    //删除本节点所有前缀下的本地缓存
+    private void invalidateLocal(String key){
+        localCaches.values().forEach(cache -> cache.invalidate(key));
+    }
+
+    //删除缓存，并通知所有节点删除本地缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        if(localCacheEnabled){
+            invalidateLocal(key);
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    //将任意java对象编码后存储在String类型的key中，并且可以设置TTL过期时间
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        cacheRedisTemplate.opsForValue().set(key, encode(value),time,unit);
     }
 
-    //将任意java对象序列化为json并存储在String类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
+    //将任意java对象编码后存储在String类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿问题
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
-        //设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        //设置逻辑过期时间，写入redis
+        cacheRedisTemplate.opsForValue().set(key,
+                encodeLogical(value, LocalDateTime.now().plusSeconds(unit.toSeconds(time))));
+    }
+
+    //读取缓存的原始字节，不存在返回null，空值返回长度为0的数组
+    private byte[] get(String key){
+        return cacheRedisTemplate.opsForValue().get(key);
+    }
+
+    //写入空值
+    private void setNull(String key){
+        cacheRedisTemplate.opsForValue().set(key, NULL_VALUE, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+
+    private byte[] encode(Object value){
+        byte[] bytes = codecs.writer().encode(value);
+        valueSize.record(bytes.length);
+        return bytes;
+    }
+
+    private byte[] encodeLogical(Object value, LocalDateTime expireTime){
+        byte[] bytes = codecs.writer().encodeLogical(value, expireTime);
+        valueSize.record(bytes.length);
+        return bytes;
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> type){
+        return codecs.reader(bytes).decode(bytes, type);
+    }
+
+    private <R> RedisData decodeLogical(byte[] bytes, Class<R> type){
+        return codecs.reader(bytes).decodeLogical(bytes, type);
     }
 
     /**
@@ -57,97 +247,374 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key=keyPrefix+id;
+        //先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if(local != null){
+            return local;
+        }
+        //布隆过滤器判断id不存在，直接返回，不访问Redis和数据库
+        if(!bloomFilterGuard.mightContain(keyPrefix, id)){
+            return null;
+        }
         //1、从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] value = get(key);
 
         //2、判断是否存在
-        if(StrUtil.isNotBlank(json)){
+        if(value!=null && value.length>0){
             //3、存在，直接返回
-            return JSONUtil.toBean(json,type);
+            R r = decode(value,type);
+            putLocal(keyPrefix, key, r);
+            return r;
         }
 
         //判断命中的是否是空值
-        if(json!=null){
+        if(value!=null){
             //是""，返回一个错误信息
             return null;
         }
 
-        //4、不存在，根据id查询数据库
-        R r=dbFallback.apply(id);
+        //4、不存在，根据id查询数据库，同一节点上同一个key的并发请求只查询一次
+        return singleFlight.execute(key, () -> {
+            R r=dbFallback.apply(id);
+
+            //5、不存在，返回错误
+            if(r==null){
+                //将空值写入Redis
+                setNull(key);
+                //返回错误信息
+                return null;
+            }
+            //6、存在，写入redis
+            this.set(key,r,time,unit);
+            putLocal(keyPrefix, key, r);
+
+            return r;
+        }, loadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
 
-        //5、不存在，返回错误
-        if(r==null){
-            //将空值写入Redis
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-            //返回错误信息
+    /**
+     * 根据指定的key查询缓存，未命中时用互斥锁保证只有一个请求查询数据库，利用缓存空值解决缓存穿透问题
+     * 同一节点的并发请求先在本地合并，只有一个线程去竞争分布式锁，其余线程等待它的结果
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        String key=keyPrefix+id;
+        //先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if(local != null){
+            return local;
+        }
+        //布隆过滤器判断id不存在，直接返回，不访问Redis和数据库
+        if(!bloomFilterGuard.mightContain(keyPrefix, id)){
             return null;
         }
-        //6、存在，写入redis
-        this.set(key,r,time,unit);
+        //1、从redis查询缓存
+        byte[] value = get(key);
+        //2、判断是否存在
+        if(value!=null && value.length>0){
+            R r = decode(value,type);
+            putLocal(keyPrefix, key, r);
+            return r;
+        }
+        //判断命中的是否是空值
+        if(value!=null){
+            return null;
+        }
+        //3、不存在，合并本节点的并发请求后重建缓存
+        return singleFlight.execute(key, () -> loadWithMutex(keyPrefix, id, type, dbFallback, time, unit),
+                loadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
 
-        return r;
+    //获取互斥锁后查询数据库并写入缓存，拿不到锁说明其他节点在重建，等待它写入缓存
+    private <R,ID> R loadWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        String key=keyPrefix+id;
+        String lockKey=lockKey(keyPrefix, id);
+        long deadline=System.currentTimeMillis()+loadTimeout.toMillis();
+        while(true){
+            //1、获取互斥锁
+            String lockValue=tryLock(keyPrefix, lockKey);
+            if(lockValue!=null){
+                try {
+                    //2、成功后再次检查缓存，可能其他节点刚重建完
+                    byte[] value = get(key);
+                    if(value!=null){
+                        return value.length==0 ? null : decode(value,type);
+                    }
+                    //3、查询数据库并写入缓存
+                    R r=dbFallback.apply(id);
+                    if(r==null){
+                        setNull(key);
+                        return null;
+                    }
+                    this.set(key,r,time,unit);
+                    putLocal(keyPrefix, key, r);
+                    return r;
+                } finally {
+                    unlock(lockKey, lockValue);
+                }
+            }
+            //4、失败，休眠后检查缓存是否已被其他节点重建
+            if(System.currentTimeMillis()>=deadline){
+                throw new IllegalStateException("等待缓存重建超时，key："+key);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断，key："+key, e);
+            }
+            byte[] value = get(key);
+            if(value!=null){
+                return value.length==0 ? null : decode(value,type);
+            }
+        }
     }
 
     //根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
     public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit) {
         //1、从redis查询商铺缓存
         String key= keyPrefix+id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        hotKeyTracker.record(keyPrefix, id);
+        //先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if(local != null){
+            return local;
+        }
+        //布隆过滤器判断id不存在，直接返回，不访问Redis和数据库
+        if(!bloomFilterGuard.mightContain(keyPrefix, id)){
+            return null;
+        }
+        byte[] value = get(key);
 
-        //2、判断是否不存在
-        if(StrUtil.isBlank(json)){
-            //3、不存在，直接返回
+        //2、判断是否命中空值
+        if(value!=null && value.length==0){
             return null;
         }
 
-        //4、命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //3、不存在（比如Redis被清空或者还没预热），同一节点只查询一次数据库并写入缓存，不再直接返回null
+        if(value==null){
+            return singleFlight.execute(key, () -> {
+                R r=dbFallback.apply(id);
+                if(r==null){
+                    setNull(key);
+                    return null;
+                }
+                this.setWithLogicalExpire(key,r,time,unit);
+                putLocal(keyPrefix, key, r);
+                return r;
+            }, loadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        //4、命中，需要先把数据反序列化为对象
+        RedisData redisData = decodeLogical(value, type);
+        @SuppressWarnings("unchecked")
+        R r = (R) redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
 
         //5、判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1未过期，直接返回店铺信息
+            //5.1未过期，放入本地缓存，直接返回店铺信息
+            putLocal(keyPrefix, key, r);
             return r;
         }
 
         //5.2已过期，需要缓存重建
         //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey=RedisConstants.LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取锁成功
-        if(isLock){
-            //6.3成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //查询数据库
-                    R r1=dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
+        //6.1同一节点上同一个key只提交一次重建任务，由重建线程获取互斥锁，请求线程直接返回旧数据
+        rebuildAsync(keyPrefix, id, dbFallback, time, unit);
 
         //7、返回
         return r;
     }
 
-    //加锁,setnx
-    private boolean tryLock(String key){
-        Boolean flag=stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.MINUTES);
+    //异步重建逻辑过期的缓存，同一节点上同一个key只提交一次重建任务，队列满时放弃，继续返回旧数据
+    private <R,ID> void rebuildAsync(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key=keyPrefix+id;
+        String lockKey=lockKey(keyPrefix, id);
+        rebuildScheduler.submit(key, () -> {
+            //获取互斥锁，失败说明其他节点正在重建
+            String lockValue=tryLock(keyPrefix, lockKey);
+            if(lockValue==null){
+                return;
+            }
+            try {
+                //成功，查询数据库
+                R r=dbFallback.apply(id);
+                //写入redis
+                this.setWithLogicalExpire(key,r,time,unit);
+            }finally {
+                //释放锁，只释放自己加的锁
+                unlock(lockKey, lockValue);
+            }
+        });
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存：一次MGET查询所有key，未命中的id一次批量查询数据库，再用一次pipeline写回Redis
+     * 过期的数据先返回旧值并异步重建，数据库中不存在的id写入空值，与单个查询的语义一致
+     * @param keyPrefix 查redis的key的前缀
+     * @param ids id列表
+     * @param type 返回的类型
+     * @param dbBatchFallback 根据id集合批量查询数据库，返回id到数据的映射
+     * @param time 逻辑过期时间
+     * @param unit 时间单位
+     * @return 按ids顺序排列的数据，不存在的id不返回
+     */
+    public <R,ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID,R>> dbBatchFallback,
+                                                      Long time, TimeUnit unit){
+        Map<ID, R> result = new HashMap<>();
+        //1、去重，查本地缓存，并用布隆过滤器过滤掉一定不存在的id
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            hotKeyTracker.record(keyPrefix, id);
+            R local = getLocal(keyPrefix, key);
+            if(local != null){
+                result.put(id, local);
+            }else if(bloomFilterGuard.mightContain(keyPrefix, id)){
+                remoteIds.add(id);
+            }
+        }
+        if(!remoteIds.isEmpty()){
+            //2、一次MGET查询Redis
+            List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            List<ID> missIds = new ArrayList<>();
+            LocalDateTime now = LocalDateTime.now();
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] value = values == null ? null : values.get(i);
+                if(value == null){
+                    //2.1未命中，需要查询数据库
+                    missIds.add(id);
+                    continue;
+                }
+                if(value.length == 0){
+                    //2.2命中空值，数据不存在
+                    continue;
+                }
+                //2.3命中，判断是否过期，过期的先返回旧数据，异步重建
+                RedisData redisData = decodeLogical(value, type);
+                @SuppressWarnings("unchecked")
+                R r = (R) redisData.getData();
+                if(redisData.getExpireTime().isAfter(now)){
+                    putLocal(keyPrefix, keys.get(i), r);
+                }else{
+                    rebuildAsync(keyPrefix, id,
+                            id2 -> dbBatchFallback.apply(Collections.singletonList(id2)).get(id2), time, unit);
+                }
+                result.put(id, r);
+            }
+            //3、未命中的id一次查询数据库，并用一次pipeline写回Redis
+            if(!missIds.isEmpty()){
+                Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+                Map<String, Object> loadedValues = new HashMap<>();
+                List<String> nullKeys = new ArrayList<>();
+                for (ID id : missIds) {
+                    R r = loaded.get(id);
+                    if(r == null){
+                        nullKeys.add(keyPrefix + id);
+                    }else{
+                        loadedValues.put(keyPrefix + id, r);
+                        result.put(id, r);
+                    }
+                }
+                setBatchWithLogicalExpire(loadedValues, nullKeys, time, unit);
+            }
+        }
+        //4、按传入的顺序返回
+        List<R> list = new ArrayList<>(result.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R r = result.get(id);
+            if(r != null){
+                list.add(r);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 一次MGET查询逻辑过期缓存的过期时间
+     * @param keys 缓存的key
+     * @return 与keys一一对应的逻辑过期时间，key不存在或者是空值时为null
+     */
+    public List<LocalDateTime> getLogicalExpireTimes(List<String> keys){
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+        List<LocalDateTime> expireTimes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = values == null ? null : values.get(i);
+            //只读取过期时间，不需要解码整个对象
+            expireTimes.add(value == null || value.length == 0 ? null
+                    : codecs.reader(value).decodeExpireTime(value));
+        }
+        return expireTimes;
+    }
+
+    /**
+     * 用一次pipeline批量写入逻辑过期的数据
+     * @param values key到数据的映射
+     * @param nullKeys 数据库中不存在的key，写入空值，过期时间为CACHE_NULL_TTL
+     * @param time 逻辑过期时间
+     * @param unit 时间单位
+     */
+    public void setBatchWithLogicalExpire(Map<String, Object> values, Collection<String> nullKeys, Long time, TimeUnit unit){
+        setBatchWithLogicalExpire(values, nullKeys, time, unit, 0);
+    }
+
+    /**
+     * 用一次pipeline批量写入逻辑过期的数据，每个key的逻辑过期时间随机延长，避免同一批写入的key同时过期、同时重建
+     * @param jitterRatio 随机延长的最大比例，例如0.2表示在time的基础上随机延长0~20%
+     */
+    public void setBatchWithLogicalExpire(Map<String, Object> values, Collection<String> nullKeys, Long time, TimeUnit unit,
+                                          double jitterRatio){
+        if(values.isEmpty() && nullKeys.isEmpty()){
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long seconds = unit.toSeconds(time);
+        long maxJitter = (long) (seconds * Math.max(jitterRatio, 0));
+        //先在当前线程编码好，pipeline里只发送字节
+        Map<byte[], byte[]> encoded = new HashMap<>();
+        values.forEach((key, value) -> {
+            long jitter = maxJitter > 0 ? ThreadLocalRandom.current().nextLong(maxJitter + 1) : 0;
+            encoded.put(key.getBytes(StandardCharsets.UTF_8), encodeLogical(value, now.plusSeconds(seconds + jitter)));
+        });
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, value) -> connection.stringCommands().set(key, value));
+            long nullTtl = TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL);
+            for (String key : nullKeys) {
+                connection.stringCommands().setEx(key.getBytes(StandardCharsets.UTF_8), nullTtl, NULL_VALUE);
+            }
+            return null;
+        });
+    }
+
+    //根据缓存key的命名空间生成重建锁的key，例如cache:shop:1 -> lock:shop:1，不同类型的数据不会争抢同一把锁
+    private static String lockKey(String keyPrefix, Object id){
+        return LOCK_KEY_PREFIX + StrUtil.removePrefix(keyPrefix, CACHE_KEY_PREFIX) + id;
+    }
+
+    /**
+     * 加锁,setnx，锁的值是本次加锁的唯一标识，释放时校验
+     * @param keyPrefix 缓存key的前缀，用于统计各命名空间的锁竞争
+     * @param lockKey 锁的key
+     * @return 加锁成功返回锁的值，失败返回null
+     */
+    private String tryLock(String keyPrefix, String lockKey){
+        String lockValue=ID_PREFIX+UUID.randomUUID().toString(true);
+        //锁的有效期与缓存重建的超时时间一致，重建线程异常退出时锁也能及时释放
+        Boolean flag=stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey,lockValue,rebuildTimeout.toMillis(),TimeUnit.MILLISECONDS);
         //直接传递过去可能会拆箱，变为空值
-        return BooleanUtil.isTrue(flag);
+        boolean success=BooleanUtil.isTrue(flag);
+        meterRegistry.counter("cache.rebuild.lock", "namespace", keyPrefix,
+                "result", success ? "acquired" : "contended").increment();
+        return success ? lockValue : null;
     }
 
-    //释放锁，setnx
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    //释放锁，用Lua脚本判断锁的值是否一致，避免重建超时后删掉别人的锁
+    private void unlock(String lockKey, String lockValue){
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), lockValue);
     }
 
 }
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编解码，CacheClient通过它把对象转成写入Redis的字节
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存值
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     */
+    byte[] encodeLogical(Object value, LocalDateTime expireTime);
+
+    /**
+     * 解码带逻辑过期时间的缓存值
+     * @return data已经转换为type类型的RedisData
+     */
+    <R> RedisData decodeLogical(byte[] bytes, Class<R> type);
+
+    /**
+     * 只读取逻辑过期时间，不解码数据
+     */
+    LocalDateTime decodeExpireTime(byte[] bytes);
+}
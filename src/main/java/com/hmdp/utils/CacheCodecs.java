@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+/**
+ * 选择写入时使用的编码，读取时根据第一个字节判断数据是哪种编码
+ */
+public class CacheCodecs {
+
+    public static final String JSON = "json";
+    public static final String SMILE = "smile";
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    private final SmileCacheCodec smileCodec;
+
+    private final CacheCodec writer;
+
+    /**
+     * @param writerName 写入使用的编码，json或smile
+     * @param compressThreshold smile编码超过多少字节压缩
+     */
+    public CacheCodecs(String writerName, int compressThreshold) {
+        this.smileCodec = new SmileCacheCodec(compressThreshold);
+        if (SMILE.equalsIgnoreCase(writerName)) {
+            this.writer = smileCodec;
+        } else if (JSON.equalsIgnoreCase(writerName)) {
+            this.writer = jsonCodec;
+        } else {
+            throw new IllegalArgumentException("不支持的缓存编码：" + writerName);
+        }
+    }
+
+    //写入使用的编码
+    public CacheCodec writer() {
+        return writer;
+    }
+
+    //按数据的第一个字节选择解码器，旧的json数据和新的二进制数据可以同时存在
+    public CacheCodec reader(byte[] bytes) {
+        return bytes[0] == SmileCacheCodec.VERSION ? smileCodec : jsonCodec;
+    }
+}
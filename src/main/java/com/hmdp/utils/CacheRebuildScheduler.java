@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建任务的统一调度：有界队列，同一个key同时只会有一个重建任务
+ * 队列满了直接拒绝，调用方继续返回旧数据，不会因为大量key同时过期堆积成千上万个重复任务
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //重建线程数
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    //等待执行的重建任务最多多少个
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    //应用关闭时等待正在执行的重建任务完成的时间
+    @Value("${hmdp.cache.rebuild.shutdown-timeout:10s}")
+    private Duration shutdownTimeout;
+
+    private ThreadPoolExecutor executor;
+
+    //已经提交还没执行完的key，用来去重
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private Timer latencyTimer;
+    private Counter failureCounter;
+    private Counter rejectedCounter;
+    private Counter dedupCounter;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        latencyTimer = meterRegistry.timer("cache.rebuild.latency");
+        failureCounter = meterRegistry.counter("cache.rebuild.failures");
+        rejectedCounter = meterRegistry.counter("cache.rebuild.rejected");
+        dedupCounter = meterRegistry.counter("cache.rebuild.deduplicated");
+        Gauge.builder("cache.rebuild.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存的key，同一个key已经在队列中或正在执行时不会重复提交
+     * @param task 重建逻辑，抛出的异常会记录日志和失败次数
+     * @return true代表提交成功，false代表被去重或者队列已满，调用方应继续使用旧数据
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            dedupCounter.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    failureCounter.increment();
+                    log.error("缓存重建失败，key：{}", key, e);
+                } finally {
+                    latencyTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    pendingKeys.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingKeys.remove(key);
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满，继续使用旧数据，key：{}", key);
+            return false;
+        }
+    }
+
+    //应用关闭时不再接收新任务，等待已提交的任务执行完
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("缓存重建任务未在{}内完成，强制关闭，剩余任务数：{}", shutdownTimeout, executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 店铺缓存预热：启动时或手动触发时分页把tb_shop写入Redis，并定时在热点key逻辑过期之前提前刷新
+ * 这样queryWithLogicalExpire几乎不会读到过期数据，也不会因为Redis被清空而查不到数据
+ */
+@Slf4j
+@Component
+public class CacheWarmer {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    //启动时是否预热
+    @Value("${hmdp.cache.warmup.on-startup:false}")
+    private boolean warmUpOnStartup;
+
+    //每页查询、写入的店铺数
+    @Value("${hmdp.cache.warmup.page-size:500}")
+    private int pageSize;
+
+    //每次刷新的热点key个数
+    @Value("${hmdp.cache.warmup.hot-key-count:100}")
+    private int hotKeyCount;
+
+    //距离逻辑过期还剩多少时间时提前刷新
+    @Value("${hmdp.cache.warmup.refresh-ahead:60s}")
+    private Duration refreshAhead;
+
+    //逻辑过期时间随机延长的最大比例，预热的店铺不会在同一时刻过期
+    @Value("${hmdp.cache.warmup.expire-jitter:0.2}")
+    private double expireJitter;
+
+    //防止同时执行多次全量预热
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+
+    //执行全量预热的后台线程
+    private final ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "cache-warmup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!warmUpOnStartup) {
+            return;
+        }
+        //不阻塞启动
+        warmUpAsync();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        warmUpExecutor.shutdownNow();
+    }
+
+    /**
+     * 在后台线程全量预热店铺缓存
+     * @return 是否提交成功，已经有预热任务在执行时返回false
+     */
+    public boolean warmUpAsync() {
+        if (!warming.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            warmUpExecutor.execute(() -> {
+                try {
+                    warmUp();
+                } finally {
+                    warming.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            warming.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    //全量预热店铺缓存，失败时记录日志，已写入的店铺保留
+    private void warmUp() {
+        long begin = System.currentTimeMillis();
+        long count = 0;
+        try {
+            //按id分页查询，避免OFFSET越往后越慢
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopService.query()
+                        .gt("id", lastId).orderByAsc("id").last("limit " + pageSize).list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                writeShops(shops, Collections.emptyList());
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+                if (shops.size() < pageSize) {
+                    break;
+                }
+            }
+            log.info("店铺缓存预热完成，店铺数：{}，耗时：{}ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺缓存预热失败，已写入：{}", count, e);
+        }
+    }
+
+    //定时刷新即将逻辑过期的热点店铺，热度来自CacheClient的抽样访问统计
+    @Scheduled(fixedDelayString = "${hmdp.cache.warmup.refresh-interval:PT10S}")
+    public void refreshHotKeys() {
+        List<String> hotIds = cacheClient.drainHotKeys(RedisConstants.CACHE_SHOP_KEY, hotKeyCount);
+        if (hotIds.isEmpty()) {
+            return;
+        }
+        try {
+            //1、一次MGET查询热点key的逻辑过期时间
+            List<String> keys = new ArrayList<>(hotIds.size());
+            for (String id : hotIds) {
+                keys.add(RedisConstants.CACHE_SHOP_KEY + id);
+            }
+            List<LocalDateTime> expireTimes = cacheClient.getLogicalExpireTimes(keys);
+            //2、找出不存在或者即将过期的
+            LocalDateTime deadline = LocalDateTime.now().plus(refreshAhead);
+            List<Long> refreshIds = new ArrayList<>();
+            for (int i = 0; i < hotIds.size(); i++) {
+                LocalDateTime expireTime = expireTimes.get(i);
+                if ((expireTime == null || expireTime.isBefore(deadline)) && StrUtil.isNumeric(hotIds.get(i))) {
+                    refreshIds.add(Long.valueOf(hotIds.get(i)));
+                }
+            }
+            if (refreshIds.isEmpty()) {
+                return;
+            }
+            //3、一次IN查询数据库，一次pipeline写回
+            List<Shop> shops = shopService.listByIds(refreshIds);
+            List<String> nullKeys = new ArrayList<>();
+            Map<Long, Shop> found = new HashMap<>();
+            shops.forEach(shop -> found.put(shop.getId(), shop));
+            for (Long id : refreshIds) {
+                if (!found.containsKey(id)) {
+                    nullKeys.add(RedisConstants.CACHE_SHOP_KEY + id);
+                }
+            }
+            writeShops(shops, nullKeys);
+            log.debug("提前刷新热点店铺缓存：{}", refreshIds);
+        } catch (Exception e) {
+            log.error("刷新热点店铺缓存失败", e);
+        }
+    }
+
+    private void writeShops(List<Shop> shops, List<String> nullKeys) {
+        Map<String, Object> values = new HashMap<>(shops.size() * 2);
+        for (Shop shop : shops) {
+            values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setBatchWithLogicalExpire(values, nullKeys, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES,
+                expireJitter);
+    }
+}
@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 抽样统计每个key前缀下id的访问次数，用来找出热点key
+ * 每sampleRate次访问记录一次，每个前缀最多记录maxKeys个id，避免统计本身占用过多内存
+ */
+public class HotKeyTracker {
+
+    private final int sampleRate;
+
+    private final int maxKeys;
+
+    //key前缀 -> (id -> 抽样访问次数)
+    private final Map<String, ConcurrentHashMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+
+    public HotKeyTracker(int sampleRate, int maxKeys) {
+        this.sampleRate = Math.max(1, sampleRate);
+        this.maxKeys = maxKeys;
+    }
+
+    //记录一次访问，按抽样率决定是否计数
+    public void record(String keyPrefix, Object id) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        ConcurrentHashMap<String, LongAdder> map = counters.computeIfAbsent(keyPrefix, k -> new ConcurrentHashMap<>());
+        String field = String.valueOf(id);
+        LongAdder adder = map.get(field);
+        if (adder == null) {
+            if (map.size() >= maxKeys) {
+                return;
+            }
+            adder = map.computeIfAbsent(field, k -> new LongAdder());
+        }
+        adder.increment();
+    }
+
+    /**
+     * 取出上一个统计周期内访问次数最多的n个id，并开始新的统计周期
+     * @param keyPrefix key前缀
+     * @param n 返回的个数
+     * @return 按访问次数从高到低排列的id
+     */
+    public List<String> drainTop(String keyPrefix, int n) {
+        ConcurrentHashMap<String, LongAdder> map = counters.put(keyPrefix, new ConcurrentHashMap<>());
+        if (map == null || map.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return map.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+                .limit(n)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -10,7 +12,16 @@ public interface ILock {
     boolean tryLock(long timeoutSec);
 
     /**
-     * 释放锁
+     * 尝试获取锁，锁被占用时等待释放通知，最多等待waitTime
+     * @param waitTime 最多等待的时间，小于等于0时不等待
+     * @param leaseTime 锁持有的超时时间，-1代表由看门狗自动续期，直到释放锁
+     * @param unit 时间单位
+     * @return true代表获取锁成功，false代表等待超时
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 释放锁，重入多次的锁需要释放相同的次数
      */
     void unlock();
 }
@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器，具体策略由hmdp.id.strategy选择
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成全局唯一、趋势递增的id
+     * @param keyPrefix 业务前缀，例如order
+     */
+    long nextId(String keyPrefix);
+}
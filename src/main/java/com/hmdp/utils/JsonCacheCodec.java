@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 用Hutool转成json字符串，与原来直接写入json的缓存格式完全一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return encode(redisData);
+    }
+
+    @Override
+    public <R> RedisData decodeLogical(byte[] bytes, Class<R> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+
+    @Override
+    public LocalDateTime decodeExpireTime(byte[] bytes) {
+        return decode(bytes, RedisData.class).getExpireTime();
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+/**
+ * 进程内的令牌桶，用于在访问Redis之前先在本地过滤请求
+ */
+public class LocalTokenBucket {
+
+    //每纳秒生成的令牌数
+    private final double ratePerNano;
+
+    //桶的容量
+    private final double burst;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond 每秒生成的令牌数
+     * @param burst 桶的容量，允许的突发请求数
+     */
+    public LocalTokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000D;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    //尝试获取一个令牌
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
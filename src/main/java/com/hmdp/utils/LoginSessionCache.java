@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录用户的本地缓存：token -> UserDTO
+ * 命中时不访问Redis，token有效期的刷新合并后定时批量写入，退出登录时广播给所有节点删除本地缓存
+ */
+@Slf4j
+@Component
+public class LoginSessionCache {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    //本地缓存的存活时间，也是广播丢失时其他节点最多还能使用已退出token的时间
+    @Value("${hmdp.login.local-ttl:60s}")
+    private Duration localTtl;
+
+    //本地缓存最多保存的token数
+    @Value("${hmdp.login.local-maximum-size:100000}")
+    private long localMaximumSize;
+
+    //距离上次刷新有效期超过这个时间，才再次刷新
+    @Value("${hmdp.login.refresh-interval:10m}")
+    private Duration refreshInterval;
+
+    private Cache<String, Session> sessions;
+
+    //等待批量刷新有效期的token
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    private Timer localTimer;
+    private Timer redisTimer;
+
+    public LoginSessionCache(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                             MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        sessions = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, sessions, "login.session");
+        //解析token的耗时，按是否访问了Redis区分
+        localTimer = meterRegistry.timer("login.session.resolve", "source", "local");
+        redisTimer = meterRegistry.timer("login.session.resolve", "source", "redis");
+        meterRegistry.gauge("login.session.refresh.pending", pendingRefresh, Set::size);
+        //其他节点退出登录时，删除本节点的本地缓存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.LOGIN_REVOKE_CHANNEL));
+    }
+
+    /**
+     * 根据token获取登录用户
+     * @param token 请求头中的token
+     * @return 登录用户，token不存在或已过期时返回null
+     */
+    public UserDTO get(String token) {
+        long begin = System.nanoTime();
+        //1、先查本地缓存
+        Session session = sessions.getIfPresent(token);
+        if (session != null) {
+            //2、命中，需要时登记刷新有效期
+            markRefresh(token, session);
+            localTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            return session.user;
+        }
+        //3、未命中，查询Redis
+        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY + token);
+        redisTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        if (userMap.isEmpty()) {
+            return null;
+        }
+        //4、存在，转为UserDTO并放入本地缓存，登记刷新有效期
+        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        session = new Session(userDTO);
+        sessions.put(token, session);
+        pendingRefresh.add(token);
+        return userDTO;
+    }
+
+    /**
+     * 登录成功后保存用户信息：用一次pipeline写入Redis的Hash并设置有效期，同时写入本地缓存
+     */
+    public void save(String token, UserDTO userDTO) {
+        //字段值转为String，因为用的是stringRedisTemplate，只能存放String类型，存放不了Long
+        Map<String, String> userMap = new HashMap<>();
+        BeanUtil.beanToMap(userDTO, false, true).forEach((field, value) -> userMap.put(field, value.toString()));
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        long ttl = TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hMSet(key, userMap);
+            conn.expire(key, ttl);
+            return null;
+        });
+        //本节点的下一次请求不需要访问Redis
+        sessions.put(token, new Session(userDTO));
+    }
+
+    /**
+     * 退出登录：删除Redis中的token，并通知所有节点删除本地缓存
+     */
+    public void revoke(String token) {
+        stringRedisTemplate.delete(RedisConstants.LOGIN_USER_KEY + token);
+        sessions.invalidate(token);
+        pendingRefresh.remove(token);
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_REVOKE_CHANNEL, token);
+    }
+
+    //距离上次刷新超过间隔时，登记到待刷新集合，同一个token只登记一次
+    private void markRefresh(String token, Session session) {
+        long now = System.currentTimeMillis();
+        if (now - session.lastRefresh >= refreshInterval.toMillis()) {
+            session.lastRefresh = now;
+            pendingRefresh.add(token);
+        }
+    }
+
+    //定时用一次pipeline刷新所有登记的token有效期
+    @Scheduled(fixedDelayString = "${hmdp.login.refresh-flush-interval:PT1S}")
+    public void flushRefresh() {
+        if (pendingRefresh.isEmpty()) {
+            return;
+        }
+        List<String> tokens = new ArrayList<>(pendingRefresh);
+        tokens.forEach(pendingRefresh::remove);
+        long ttl = TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String token : tokens) {
+                    conn.expire(RedisConstants.LOGIN_USER_KEY + token, ttl);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            //刷新失败时放回去，下次再刷新
+            log.error("刷新token有效期失败", e);
+            pendingRefresh.addAll(tokens);
+        }
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        //上次刷新有效期的时间
+        private volatile long lastRefresh;
+
+        private Session(UserDTO user) {
+            this.user = user;
+            this.lastRefresh = System.currentTimeMillis();
+        }
+    }
+}
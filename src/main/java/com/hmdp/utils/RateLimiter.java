@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+
+/**
+ * 基于Redis有序集合的滑动窗口限流，所有节点共享同一个计数
+ */
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 尝试通过限流
+     * @param name 限流的名称，例如code:phone，用于拼接key和统计拒绝次数
+     * @param id 限流的对象，例如手机号、IP
+     * @param limit 窗口内最多允许的请求数
+     * @param window 窗口大小
+     * @return 是否允许本次请求
+     */
+    public boolean tryAcquire(String name, String id, int limit, Duration window) {
+        Long result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                Collections.singletonList(RedisConstants.RATE_LIMIT_KEY + name + ":" + id),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(window.toMillis()),
+                String.valueOf(limit), UUID.randomUUID().toString(true));
+        boolean allowed = result != null && result == 1L;
+        if (!allowed) {
+            meterRegistry.counter("rate.limit.rejected", "name", name).increment();
+        }
+        return allowed;
+    }
+}
@@ -5,18 +5,45 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
+    public static final String LOGIN_REFRESH_KEY = "login:refresh:";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoke:access";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_VOUCHER_KEY = "cache:voucher:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_BLOG_TTL = 10L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher:changed";
+    public static final String SECKILL_IDEMPOTENCY_KEY = "seckill:idem:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta";
+    public static final String BLOG_HOT_KEY = "blog:hot";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FOLLOW_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String RATE_LIMIT_KEY = "limit:";
 }
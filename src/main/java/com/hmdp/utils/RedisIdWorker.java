@@ -1,16 +1,27 @@
 package com.hmdp.utils;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.security.PrivateKey;
+import javax.annotation.PreDestroy;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
-public class RedisIdWorker {
+@Slf4j
+public class RedisIdWorker implements IdGenerator {
 
     //开始时间戳
     private long beginTimestamp=this.beginTimestamp(2022,1,1,0,0,0);
@@ -18,18 +29,48 @@ public class RedisIdWorker {
     //序列号的位数
     private static final int COUNT_BITS=32;
 
+    //一天的秒数
+    private static final long SECONDS_PER_DAY=24*60*60;
+
+    //日期的格式，作为key的一部分
+    private static final DateTimeFormatter DATE_FORMATTER=DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    //当前号段用掉这个比例后，提前申请下一个号段
+    private static final double PREFETCH_RATIO=0.8;
+
     private StringRedisTemplate stringRedisTemplate;
 
+    private MeterRegistry meterRegistry;
+
+    //每次向Redis申请的序列号个数，小于等于1时每个id都INCR一次
+    private final long segmentSize;
+
+    //当天的日期字符串，跨天时才重新格式化
+    private volatile DateKey dateKey=new DateKey(-1, null);
+
+    //每个业务前缀的号段缓冲
+    private final Map<String, SegmentBuffer> buffers=new ConcurrentHashMap<>();
+
+    //后台申请下一个号段的线程
+    private final ExecutorService prefetchExecutor=Executors.newSingleThreadExecutor(r -> {
+        Thread thread=new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     //RedisIdWorker和StringRedisTemplate都被Spring容器管理，spring容器会帮你自动注入
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate){
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                         @Value("${hmdp.id.segment-size:1000}") long segmentSize){
         this.stringRedisTemplate=stringRedisTemplate;
+        this.meterRegistry=meterRegistry;
+        this.segmentSize=segmentSize;
     }
 
     //生成全局唯一ID,key的全局唯一，返回Long，刚好long是64位
+    @Override
     public long nextId(String keyPrefix){
         //1、生成时间戳
-        LocalDateTime now=LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp=nowSecond-beginTimestamp;
 
         //2、生成序列号
@@ -37,9 +78,11 @@ public class RedisIdWorker {
         // 低32会回绕，导致订单id重复
         //2.1获取当前日期，精确到天，这样子做的好处可以避免避免单个 Redis key 的 INCR 值过大（超过 2^32），
         // 还能精准统计哪年哪月哪日的下单数
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长，每次调用increment，value+1=count
-        long count=stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+date);
+        DateKey date = dateKey(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        buffer.generated.increment();
+        //2.2自增长，从本地号段中取，号段用完才访问Redis
+        long count=segmentSize<=1 ? increment(buffer, date, 1) : nextCount(buffer, date);
 
         //3、拼接时间戳和序列号并返回
         //timestamp 左移 32 位，给 count 腾出空间（1111101000 00000000000000000000000000000000）
@@ -47,6 +90,89 @@ public class RedisIdWorker {
         return timestamp << COUNT_BITS | count;
     }
 
+    //从当前号段取下一个序列号，快用完时后台预取下一个号段，用完时切换
+    private long nextCount(SegmentBuffer buffer, DateKey date){
+        while(true){
+            Segment segment = buffer.current;
+            //号段属于前一天时不能再用，否则会和当天其他节点申请的序列号重复
+            if(segment==null || segment.day!=date.day){
+                switchSegment(buffer, segment, date);
+                continue;
+            }
+            long count = segment.cursor.getAndIncrement();
+            if(count<segment.end){
+                if(count==segment.prefetchAt){
+                    prefetch(buffer, date);
+                }
+                return count;
+            }
+            //号段用完，切换到预取好的号段
+            switchSegment(buffer, segment, date);
+        }
+    }
+
+    //只有一个线程执行切换，其他线程等它切换完后重新取号
+    private void switchSegment(SegmentBuffer buffer, Segment used, DateKey date){
+        synchronized (buffer){
+            if(buffer.current!=used){
+                return;
+            }
+            Segment next = buffer.next;
+            buffer.next = null;
+            buffer.current = next!=null && next.day==date.day ? next : lease(buffer, date);
+        }
+    }
+
+    //后台申请下一个号段，同一时间每个前缀只有一个预取任务
+    private void prefetch(SegmentBuffer buffer, DateKey date){
+        if(buffer.next!=null || !buffer.loading.compareAndSet(false, true)){
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            try {
+                Segment segment = lease(buffer, date);
+                synchronized (buffer){
+                    buffer.next = segment;
+                }
+            } catch (Exception e) {
+                //预取失败不影响取号，号段用完时会同步申请
+                log.error("预取id号段失败，prefix：{}", buffer.keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    //用一次INCRBY申请一个号段[start, end)
+    private Segment lease(SegmentBuffer buffer, DateKey date){
+        long end = increment(buffer, date, segmentSize) + 1;
+        return new Segment(date.day, end - segmentSize, end);
+    }
+
+    private long increment(SegmentBuffer buffer, DateKey date, long delta){
+        buffer.redisCalls.increment();
+        Long count = stringRedisTemplate.opsForValue().increment("icr:"+buffer.keyPrefix+":"+date.value, delta);
+        if(count==null){
+            throw new IllegalStateException("生成id失败，prefix："+buffer.keyPrefix);
+        }
+        return count;
+    }
+
+    //获取日期字符串，同一天内复用
+    private DateKey dateKey(long day){
+        DateKey current = dateKey;
+        if(current.day!=day){
+            current = new DateKey(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateKey = current;
+        }
+        return current;
+    }
+
+    @PreDestroy
+    private void destroy(){
+        prefetchExecutor.shutdownNow();
+    }
+
     //生成特定时间的时间戳（一共多少秒）
     private static Long beginTimestamp(int year, int month, int day, int hour, int minute, int second){
         //创建一个时间对象
@@ -55,4 +181,46 @@ public class RedisIdWorker {
         long secondTime = time.toEpochSecond(ZoneOffset.UTC);
         return secondTime;
     }
+
+    private static class DateKey {
+        private final long day;
+        private final String value;
+
+        private DateKey(long day, String value) {
+            this.day = day;
+            this.value = value;
+        }
+    }
+
+    //一个号段，cursor是下一个要分配的序列号
+    private class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        private Segment(long day, long start, long end) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = start + (long) (segmentSize * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    //双缓冲：当前正在使用的号段和预取好的下一个号段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+        //生成的id数和访问Redis的次数，两者之差就是节省的Redis调用
+        private final Counter generated;
+        private final Counter redisCalls;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+            this.generated = meterRegistry.counter("id.generated", "prefix", keyPrefix);
+            this.redisCalls = meterRegistry.counter("id.redis.calls", "prefix", keyPrefix);
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 创建SimpleRedisLock，并提供所有锁共用的看门狗线程和释放通知
+ * 1、看门狗：leaseTime为-1时，每隔有效期的1/3续期一次，直到完全释放锁
+ * 2、释放通知：只订阅一次lock:channel:*，收到某个锁的释放消息时唤醒等待这个锁的线程，等待时不需要自旋访问Redis
+ */
+@Slf4j
+@Component
+public class RedisLockFactory {
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    //看门狗模式下锁的有效期，节点宕机后最多这么久释放
+    @Value("${hmdp.lock.watchdog-timeout:30s}")
+    private Duration watchdogTimeout;
+
+    //所有锁共用的续期线程
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //正在续期的锁：锁的key:持有者标识 -> 续期任务
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+
+    //有线程在等待的锁：释放通知的频道 -> 等待者
+    private final Map<String, LockEntry> entries = new ConcurrentHashMap<>();
+
+    public RedisLockFactory(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            LockEntry entry = entries.get(new String(message.getChannel(), StandardCharsets.UTF_8));
+            if (entry != null) {
+                entry.signal();
+            }
+        }, new PatternTopic(SimpleRedisLock.CHANNEL_PREFIX + "*"));
+    }
+
+    /**
+     * 获取一个锁对象，同一个name的锁对象之间互斥
+     */
+    public ILock getLock(String name) {
+        return new SimpleRedisLock(name, stringRedisTemplate, this);
+    }
+
+    long getWatchdogTimeout() {
+        return watchdogTimeout.toMillis();
+    }
+
+    //开始等待锁，同一个锁的等待者共用一个LockEntry
+    LockEntry subscribe(String channel) {
+        return entries.compute(channel, (k, entry) -> {
+            if (entry == null) {
+                entry = new LockEntry();
+            }
+            entry.waiters++;
+            return entry;
+        });
+    }
+
+    //结束等待，最后一个等待者离开时删除LockEntry
+    void unsubscribe(String channel, LockEntry entry) {
+        entries.computeIfPresent(channel, (k, e) -> e == entry && --e.waiters == 0 ? null : e);
+    }
+
+    //获取锁成功后开始续期，重入时已经在续期则不重复创建
+    void startRenewal(String key, String owner, long leaseMillis) {
+        long period = Math.max(leaseMillis / 3, 1);
+        renewals.computeIfAbsent(key + ":" + owner, id -> scheduler.scheduleAtFixedRate(
+                () -> renew(key, owner, leaseMillis), period, period, TimeUnit.MILLISECONDS));
+    }
+
+    //完全释放锁后停止续期
+    void stopRenewal(String key, String owner) {
+        ScheduledFuture<?> future = renewals.remove(key + ":" + owner);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void renew(String key, String owner, long leaseMillis) {
+        try {
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                    owner, String.valueOf(leaseMillis));
+            if (result == null || result == 0) {
+                //锁已经不是自己的了（过期或被删除），不再续期
+                stopRenewal(key, owner);
+            }
+        } catch (Exception e) {
+            //续期失败等下一次，锁在有效期内仍然有效
+            log.error("锁续期失败，key：{}", key, e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 等待同一个锁的线程，收到一次释放通知唤醒一个线程去竞争
+     */
+    static class LockEntry {
+        //只在entries.compute中修改
+        private int waiters;
+        private final Semaphore latch = new Semaphore(0);
+
+        void await(long millis) throws InterruptedException {
+            latch.tryAcquire(millis, TimeUnit.MILLISECONDS);
+        }
+
+        void signal() {
+            latch.release();
+        }
+    }
+}
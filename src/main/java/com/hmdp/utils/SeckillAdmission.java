@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀的准入控制，在查询数据库、加锁之前拒绝多余的请求
+ * 1、已知售罄的优惠券直接拒绝，售罄由发现的节点广播给所有节点
+ * 2、本地令牌桶按优惠券、按用户先过滤一遍，不访问Redis
+ * 3、Redis令牌桶按优惠券、按用户做全局限流，一次Lua脚本同时检查
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    //是否开启准入控制
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    //每个优惠券全局每秒放行的请求数和允许的突发请求数
+    @Value("${hmdp.seckill.admission.voucher-rate:1000}")
+    private double voucherRate;
+    @Value("${hmdp.seckill.admission.voucher-burst:2000}")
+    private double voucherBurst;
+
+    //每个优惠券在本节点每秒放行的请求数，超过的不再访问Redis
+    @Value("${hmdp.seckill.admission.local-rate:1000}")
+    private double localRate;
+
+    //每个用户对同一个优惠券每秒放行的请求数和允许的突发请求数
+    @Value("${hmdp.seckill.admission.user-rate:1}")
+    private double userRate;
+    @Value("${hmdp.seckill.admission.user-burst:3}")
+    private double userBurst;
+
+    //售罄标记的有效期，过期后放行一个请求重新确认库存，补货后可以继续抢购
+    @Value("${hmdp.seckill.admission.sold-out-ttl:5s}")
+    private Duration soldOutTtl;
+
+    //本节点每个优惠券的令牌桶
+    private final Map<Long, LocalTokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+
+    //本节点每个用户、优惠券的令牌桶，一段时间不访问后淘汰
+    private Cache<String, LocalTokenBucket> userBuckets;
+
+    //已售罄的优惠券：优惠券id -> 标记过期的时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SeckillAdmission(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                            RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        userBuckets = Caffeine.newBuilder()
+                .maximumSize(100000)
+                .expireAfterAccess(Duration.ofSeconds((long) Math.ceil(userBurst / userRate) + 1))
+                .build();
+        //其他节点发现售罄时，本节点同步标记
+        listenerContainer.addMessageListener(
+                (message, pattern) -> setSoldOut(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已知售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            //标记过期，放行请求重新确认库存
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        reject("sold_out");
+        return true;
+    }
+
+    /**
+     * 标记优惠券已售罄，之后的请求在有效期内直接拒绝，并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        //本节点刚标记时才广播，避免售罄后每个请求都发消息
+        if (setSoldOut(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    //设置售罄标记，返回之前是否没有有效的标记
+    private boolean setSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + soldOutTtl.toMillis());
+        return previous == null || previous < now;
+    }
+
+    /**
+     * 取消售罄标记，补货后调用
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 尝试通过限流，先检查本地令牌桶，再检查Redis令牌桶
+     * @return 是否放行
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (!enabled) {
+            return true;
+        }
+        //1、本地按优惠券限流
+        if (!voucherBuckets.computeIfAbsent(voucherId, id -> new LocalTokenBucket(localRate, localRate)).tryAcquire()) {
+            reject("local_voucher");
+            return false;
+        }
+        //2、本地按用户限流
+        if (!userBuckets.get(voucherId + ":" + userId, key -> new LocalTokenBucket(userRate, userBurst)).tryAcquire()) {
+            reject("local_user");
+            return false;
+        }
+        //3、Redis按用户、优惠券全局限流，两个key用{voucherId}保证在同一个slot
+        String voucherKey = RedisConstants.SECKILL_LIMIT_KEY + "{" + voucherId + "}";
+        Long result = stringRedisTemplate.execute(LIMIT_SCRIPT,
+                Arrays.asList(voucherKey + ":user:" + userId, voucherKey),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(userRate), String.valueOf(userBurst),
+                String.valueOf(voucherRate), String.valueOf(voucherBurst));
+        int r = result == null ? 0 : result.intValue();
+        if (r != 0) {
+            reject(r == 1 ? "user" : "voucher");
+            return false;
+        }
+        return true;
+    }
+
+    private void reject(String reason) {
+        meterRegistry.counter("seckill.admission.rejected", "reason", reason).increment();
+    }
+}
@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.ISeckillVoucherStockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 分片库存的定时对账
+ * 1、有分片库存耗尽时重新平均分配，减少下单时跨分片的尝试
+ * 2、把各分片库存之和写回tb_seckill_voucher，查询优惠券列表时显示
+ * 多个节点只有获取到锁的节点执行
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private ISeckillVoucherStockService seckillVoucherStockService;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stock-reconcile-interval:PT10S}")
+    public void reconcile() {
+        //1、查询还没结束的分片秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("shards", 0).gt("end_time", LocalDateTime.now()).list();
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        //2、获取锁，其他节点正在对账时跳过这一次
+        ILock lock = redisLockFactory.getLock("seckill:reconcile");
+        if (!lock.tryLock(60)) {
+            return;
+        }
+        try {
+            //3、逐个对账，一个失败不影响其他秒杀券
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    int total = seckillVoucherStockService.reconcile(voucher.getVoucherId(), voucher.getShards());
+                    log.debug("分片库存对账完成，优惠券id：{}，库存：{}", voucher.getVoucherId(), total);
+                } catch (Exception e) {
+                    log.error("分片库存对账失败，优惠券id：{}", voucher.getVoucherId(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
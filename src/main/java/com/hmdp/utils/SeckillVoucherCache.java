@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * 秒杀券的本地缓存，只用于判断秒杀的开始、结束时间，库存以Redis和数据库为准
+ * 新增或修改秒杀券后广播，所有节点删除本地缓存并取消售罄标记
+ */
+@Component
+public class SeckillVoucherCache {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //本地缓存的存活时间，广播丢失时最多读到这么久之前的数据
+    @Value("${hmdp.seckill.voucher-cache.ttl:5m}")
+    private Duration ttl;
+
+    //本地缓存最多保存的秒杀券数
+    @Value("${hmdp.seckill.voucher-cache.maximum-size:10000}")
+    private long maximumSize;
+
+    private LoadingCache<Long, SeckillVoucher> vouchers;
+
+    @PostConstruct
+    private void init() {
+        //不存在的秒杀券不缓存，由布隆过滤器拦截
+        vouchers = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build(seckillVoucherService::getById);
+        CaffeineCacheMetrics.monitor(meterRegistry, vouchers, "seckill.voucher");
+        listenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            vouchers.invalidate(voucherId);
+            seckillAdmission.clearSoldOut(voucherId);
+        }, new ChannelTopic(RedisConstants.SECKILL_VOUCHER_CHANNEL));
+    }
+
+    /**
+     * 查询秒杀券，本地缓存未命中时查询数据库
+     * @return 秒杀券，不存在时返回null
+     */
+    public SeckillVoucher get(Long voucherId) {
+        return vouchers.get(voucherId);
+    }
+
+    /**
+     * 秒杀券新增或修改后调用，通知所有节点（包括本节点）重新加载，并取消售罄标记
+     */
+    public void publishChanged(Long voucherId) {
+        vouchers.invalidate(voucherId);
+        seckillAdmission.clearSoldOut(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_VOUCHER_CHANNEL, voucherId.toString());
+    }
+}
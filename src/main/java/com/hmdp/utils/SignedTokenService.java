@@ -0,0 +1,301 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.TokenDTO;
+import com.hmdp.dto.UserDTO;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 无状态登录：访问令牌携带用户信息和过期时间，用HMAC签名，校验时不访问Redis
+ * Redis只保存已注销的访问令牌（有序集合，按过期时间清理）和可轮换的刷新令牌
+ * 访问令牌格式：base64url(json) + "." + base64url(HmacSHA256)
+ * 刷新令牌格式：会话id.用户id.随机数，Redis中login:refresh:会话id是Hash，保存会话所属的用户id和当前有效的随机数
+ */
+@Slf4j
+@Component
+public class SignedTokenService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    //轮换刷新令牌的Lua脚本，返回会话所属的用户id，旧令牌被重复使用或被篡改时删除整个会话
+    private static final DefaultRedisScript<Long> REFRESH_SCRIPT;
+    static {
+        REFRESH_SCRIPT = new DefaultRedisScript<>();
+        REFRESH_SCRIPT.setLocation(new ClassPathResource("refresh_token.lua"));
+        REFRESH_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    //登录模式，session：Redis保存登录用户；stateless：签名令牌
+    @Value("${hmdp.login.mode:session}")
+    private String mode;
+
+    //签名密钥，stateless模式下必须配置，所有节点一致
+    @Value("${hmdp.login.secret:}")
+    private String secret;
+
+    //访问令牌的有效期
+    @Value("${hmdp.login.access-ttl:30m}")
+    private Duration accessTtl;
+
+    //刷新令牌的有效期，每次刷新后重新计算
+    @Value("${hmdp.login.refresh-ttl:7d}")
+    private Duration refreshTtl;
+
+    private boolean enabled;
+
+    private SecretKeySpec key;
+
+    //Mac不是线程安全的，每个线程一个
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    //已注销且还没过期的访问令牌：令牌id -> 过期时间
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    public SignedTokenService(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                              MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        enabled = "stateless".equalsIgnoreCase(mode);
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(secret) || secret.length() < 32) {
+            throw new IllegalStateException("stateless登录模式需要配置至少32个字符的hmdp.login.secret");
+        }
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        meterRegistry.gauge("login.token.revoked", revoked, Map::size);
+        //其他节点注销访问令牌时，加入本节点的注销列表，消息格式：令牌id:过期时间
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(':');
+            revoked.put(body.substring(0, index), Long.parseLong(body.substring(index + 1)));
+        }, new ChannelTopic(RedisConstants.LOGIN_REVOKED_CHANNEL));
+        syncRevoked();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 登录成功后签发访问令牌和刷新令牌
+     */
+    public TokenDTO issue(UserDTO user) {
+        String sessionId = UUID.randomUUID().toString(true);
+        String nonce = UUID.randomUUID().toString(true);
+        //会话中保存所属的用户id，刷新时以Redis中的为准，不信任令牌中的用户id
+        Map<String, String> session = new HashMap<>();
+        session.put("uid", user.getId().toString());
+        session.put("nonce", nonce);
+        String key = RedisConstants.LOGIN_REFRESH_KEY + sessionId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hMSet(key, session);
+            conn.pExpire(key, refreshTtl.toMillis());
+            return null;
+        });
+        return createToken(user, sessionId, nonce);
+    }
+
+    /**
+     * 校验访问令牌，只在本地计算签名，不访问Redis
+     * @return 令牌有效时返回其中的用户，否则返回null
+     */
+    public UserDTO verify(String token) {
+        Claims claims = parse(token);
+        if (claims == null || claims.getExp() < System.currentTimeMillis() || revoked.containsKey(claims.getJti())) {
+            return null;
+        }
+        UserDTO user = new UserDTO();
+        user.setId(claims.getUid());
+        user.setNickName(claims.getNn());
+        user.setIcon(claims.getIc());
+        return user;
+    }
+
+    /**
+     * 用刷新令牌换取新的访问令牌和刷新令牌，旧的刷新令牌立即失效
+     * @param refreshToken 刷新令牌
+     * @param userLoader 根据用户id查询最新的用户信息
+     * @return 刷新令牌无效时返回null
+     */
+    public TokenDTO refresh(String refreshToken, Function<Long, UserDTO> userLoader) {
+        String[] parts = StrUtil.splitToArray(refreshToken, '.');
+        if (parts.length != 3) {
+            return null;
+        }
+        String sessionId = parts[0];
+        String nonce = UUID.randomUUID().toString(true);
+        //用户id和随机数都必须与会话中保存的一致，用户id以脚本返回的为准
+        Long userId = stringRedisTemplate.execute(REFRESH_SCRIPT,
+                Collections.singletonList(RedisConstants.LOGIN_REFRESH_KEY + sessionId),
+                parts[2], parts[1], nonce, String.valueOf(refreshTtl.toMillis()));
+        if (userId == null || userId <= 0) {
+            return null;
+        }
+        UserDTO user = userLoader.apply(userId);
+        if (user == null) {
+            stringRedisTemplate.delete(RedisConstants.LOGIN_REFRESH_KEY + sessionId);
+            return null;
+        }
+        return createToken(user, sessionId, nonce);
+    }
+
+    /**
+     * 退出登录：注销访问令牌直到它过期，并删除刷新令牌
+     */
+    public void revoke(String token) {
+        Claims claims = parse(token);
+        if (claims == null) {
+            return;
+        }
+        stringRedisTemplate.delete(RedisConstants.LOGIN_REFRESH_KEY + claims.getSid());
+        if (claims.getExp() < System.currentTimeMillis()) {
+            return;
+        }
+        revoked.put(claims.getJti(), claims.getExp());
+        stringRedisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY, claims.getJti(), claims.getExp());
+        stringRedisTemplate.convertAndSend(RedisConstants.LOGIN_REVOKED_CHANNEL, claims.getJti() + ":" + claims.getExp());
+    }
+
+    //定时清理已经过期的注销记录，并从Redis重新加载，补上丢失的广播
+    @Scheduled(fixedDelayString = "${hmdp.login.revoked-sync-interval:PT30S}")
+    public void syncRevoked() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(exp -> exp < now);
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(RedisConstants.LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    revoked.put(tuple.getValue(), tuple.getScore().longValue());
+                }
+            }
+        } catch (Exception e) {
+            log.error("同步已注销的访问令牌失败", e);
+        }
+    }
+
+    private TokenDTO createToken(UserDTO user, String sessionId, String nonce) {
+        Claims claims = new Claims();
+        claims.setJti(UUID.randomUUID().toString(true));
+        claims.setSid(sessionId);
+        claims.setUid(user.getId());
+        claims.setNn(user.getNickName());
+        claims.setIc(user.getIcon());
+        claims.setExp(System.currentTimeMillis() + accessTtl.toMillis());
+        String payload;
+        try {
+            payload = ENCODER.encodeToString(MAPPER.writeValueAsBytes(claims));
+        } catch (Exception e) {
+            throw new IllegalStateException("生成访问令牌失败", e);
+        }
+        String accessToken = payload + "." + ENCODER.encodeToString(sign(payload));
+        String refreshToken = sessionId + "." + user.getId() + "." + nonce;
+        return new TokenDTO(accessToken, refreshToken, claims.getExp());
+    }
+
+    //校验签名并解析令牌，格式或签名不正确时返回null
+    private Claims parse(String token) {
+        if (!enabled || StrUtil.isBlank(token)) {
+            return null;
+        }
+        int index = token.indexOf('.');
+        if (index <= 0 || index == token.length() - 1) {
+            return null;
+        }
+        String payload = token.substring(0, index);
+        try {
+            byte[] signature = DECODER.decode(token.substring(index + 1));
+            //用固定时间的比较，避免通过耗时猜出签名
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+            return MAPPER.readValue(DECODER.decode(payload), Claims.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //访问令牌中的字段，名字尽量短
+    @Data
+    private static class Claims {
+        //令牌id，注销时使用
+        private String jti;
+        //会话id，对应刷新令牌
+        private String sid;
+        private Long uid;
+        private String nn;
+        private String ic;
+        //过期时间（毫秒时间戳）
+        private Long exp;
+    }
+}
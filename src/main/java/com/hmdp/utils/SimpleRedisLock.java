@@ -1,60 +1,154 @@
 package com.hmdp.utils;
 
-import com.sun.javafx.beans.IDProperty;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.domain.Page;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * 基于Redis Hash的可重入锁
+ * 通过RedisLockFactory创建时支持看门狗自动续期，等待锁时订阅释放通知，不需要自旋
+ */
 public class SimpleRedisLock implements ILock{
 
     private StringRedisTemplate stringRedisTemplate;
     private String name;
 
+    //通过RedisLockFactory创建时不为空，提供看门狗和释放通知
+    private RedisLockFactory factory;
+
+    //本次持有锁的有效期，部分释放重入锁时重置为这个有效期
+    private volatile long internalLeaseMillis;
+
     private static final String KEY_PREFIX="lock:";
+    static final String CHANNEL_PREFIX="lock:channel:";
     //去掉uuid自带下划线-，添加自己的下划线-
     private static final String ID_PREFIX= UUID.randomUUID().toString().replace("-","") + "-";
 
+    //持有者标识：节点标识 + 每个线程随机生成的标识，线程id会被复用，不能作为标识
+    private static final ThreadLocal<String> OWNER = ThreadLocal.withInitial(
+            () -> ID_PREFIX + UUID.randomUUID().toString().replace("-",""));
+
+    //没有看门狗时，leaseTime为-1使用的有效期
+    private static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    //没有释放通知时，等待锁的轮询间隔
+    private static final long POLL_MILLIS = 100;
+
     public SimpleRedisLock( String name,StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
         this.name = name;
     }
 
+    SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisLockFactory factory) {
+        this(name, stringRedisTemplate);
+        this.factory = factory;
+    }
+
     //Lua脚本初始化
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
     //类加载时自动初始化
     static{
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));//加载Lua脚本
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));//加载Lua脚本
         UNLOCK_SCRIPT.setResultType(Long.class);//设定Lua脚本的返回值为long
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
-        //获取线程标识
-        String threadId = ID_PREFIX+Thread.currentThread().getId();
-        //获取锁
-        Boolean success = stringRedisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
-        //因为Boolean是包装类，而返回值boolean是基本类型，转化要自动拆箱，如果success是null的话会出问题
-        //Boolean.TRUE.equals()避免了直接拆箱（如 return success; 会导致 NullPointerException）
-        //success是true返回true，是false返回false，是null返回false
-        return Boolean.TRUE.equals(success);
+        //不等待，获取成功时Lua脚本返回nil
+        return tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec), false) == null;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        boolean watchdog = leaseTime == -1;
+        long leaseMillis = watchdog
+                ? (factory != null ? factory.getWatchdogTimeout() : DEFAULT_LEASE_MILLIS)
+                : unit.toMillis(leaseTime);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        //1、先尝试获取一次
+        Long ttl = tryAcquire(leaseMillis, watchdog);
+        if (ttl == null) {
+            return true;
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        //2、订阅释放通知，锁释放或者到期时醒来重试
+        RedisLockFactory.LockEntry entry = factory != null ? factory.subscribe(channel()) : null;
+        try {
+            while (true) {
+                ttl = tryAcquire(leaseMillis, watchdog);
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                //锁没有过期时间时(-1)只能等通知或者等待超时
+                long waitMillis = ttl >= 0 ? Math.min(ttl, remaining) : remaining;
+                if (entry != null) {
+                    entry.await(waitMillis);
+                } else {
+                    Thread.sleep(Math.min(waitMillis, POLL_MILLIS));
+                }
+            }
+        } finally {
+            if (entry != null) {
+                factory.unsubscribe(channel(), entry);
+            }
+        }
     }
 
     /**
-     * Lua标本保证释放锁时的原子性操作（只有一条语句）
+     * 执行加锁脚本
+     * @return 获取成功返回null，否则返回锁的剩余有效期
+     */
+    private Long tryAcquire(long leaseMillis, boolean watchdog) {
+        String owner = OWNER.get();
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT,
+                Collections.singletonList(KEY_PREFIX + name), owner, String.valueOf(leaseMillis));
+        if (ttl == null) {
+            internalLeaseMillis = leaseMillis;
+            if (watchdog && factory != null) {
+                factory.startRenewal(KEY_PREFIX + name, owner, leaseMillis);
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * Lua脚本保证释放锁时的原子性操作，重入次数减到0时删除锁并通知等待的线程
      */
     @Override
     public void unlock() {
+        String owner = OWNER.get();
         // 调用lua脚本，key转成集合
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX+name),
-                ID_PREFIX+Thread.currentThread().getId());
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                Arrays.asList(KEY_PREFIX + name, channel()),
+                owner, String.valueOf(internalLeaseMillis));
+        if (result == null || result == -1) {
+            //锁已经过期或者被别人持有
+            throw new IllegalMonitorStateException("锁不是当前线程持有的：" + name);
+        }
+        if (result == 1 && factory != null) {
+            //完全释放，停止看门狗
+            factory.stopRenewal(KEY_PREFIX + name, owner);
+        }
+    }
+
+    private String channel() {
+        return CHANNEL_PREFIX + name;
     }
 
     /*@Override
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个key的并发请求：同一时刻只有第一个请求真正执行，其余请求等待并共享它的结果或异常
+ */
+public class SingleFlight {
+
+    //正在执行的请求，执行结束后移除
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 同步执行，同一个key并发调用时只执行一次supplier
+     * @param key 合并请求的key
+     * @param supplier 真正的执行逻辑，比如查询数据库并写入缓存
+     * @param timeout 等待其他线程执行结果的最长时间
+     * @param unit 时间单位
+     * @return supplier的执行结果，可能为null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> supplier, long timeout, TimeUnit unit) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+        if (existing == null) {
+            //1、当前线程是第一个请求，负责执行
+            try {
+                T value = supplier.get();
+                future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                //异常同样传递给所有等待的线程
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, future);
+            }
+        }
+        //2、已经有线程在执行，等待它的结果
+        try {
+            return (T) existing.get(timeout, unit);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待" + key + "的执行结果超时", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待" + key + "的执行结果被中断", e);
+        }
+    }
+
+    //当前正在执行的key的数量
+    public int inFlight() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 二进制编码：Jackson Smile，超过阈值的数据再用Deflate压缩
+ * 格式：版本号(1字节) + 标志位(1字节) + [逻辑过期时间毫秒(8字节)] + 数据
+ * 版本号不是json的合法开头，CacheClient据此区分两种格式，切换编码后旧数据仍然可以读取
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final byte VERSION = 1;
+
+    //标志位：带逻辑过期时间
+    private static final byte FLAG_LOGICAL = 1;
+    //标志位：数据经过压缩
+    private static final byte FLAG_DEFLATE = 1 << 1;
+
+    private static final int HEADER_SIZE = 2;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            //与Hutool一致，不写入null字段
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, true)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    //超过这个字节数才压缩，小数据压缩收益不大还浪费CPU
+    private final int compressThreshold;
+
+    public SmileCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, null);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return read(bytes, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        return write(value, expireTime);
+    }
+
+    @Override
+    public <R> RedisData decodeLogical(byte[] bytes, Class<R> type) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(decodeExpireTime(bytes));
+        redisData.setData(read(bytes, type));
+        return redisData;
+    }
+
+    @Override
+    public LocalDateTime decodeExpireTime(byte[] bytes) {
+        if ((bytes[1] & FLAG_LOGICAL) == 0) {
+            return null;
+        }
+        long millis = ByteBuffer.wrap(bytes, HEADER_SIZE, 8).getLong();
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private byte[] write(Object value, LocalDateTime expireTime) {
+        try {
+            byte[] payload = MAPPER.writeValueAsBytes(value);
+            byte flags = 0;
+            if (expireTime != null) {
+                flags |= FLAG_LOGICAL;
+            }
+            if (payload.length > compressThreshold) {
+                byte[] compressed = deflate(payload);
+                if (compressed.length < payload.length) {
+                    payload = compressed;
+                    flags |= FLAG_DEFLATE;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (expireTime != null ? 8 : 0) + payload.length);
+            buffer.put(VERSION).put(flags);
+            if (expireTime != null) {
+                buffer.putLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+            buffer.put(payload);
+            return buffer.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <R> R read(byte[] bytes, Class<R> type) {
+        byte flags = bytes[1];
+        int offset = HEADER_SIZE + ((flags & FLAG_LOGICAL) != 0 ? 8 : 0);
+        try {
+            if ((flags & FLAG_DEFLATE) != 0) {
+                byte[] payload = inflate(bytes, offset);
+                return MAPPER.readValue(payload, type);
+            }
+            return MAPPER.readValue(bytes, offset, bytes.length - offset, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("压缩数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
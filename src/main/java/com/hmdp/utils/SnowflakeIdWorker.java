@@ -0,0 +1,217 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花算法生成id，生成时不访问Redis
+ * 符号位(1) + 标志位(1，固定为1) + 毫秒时间戳(40) + worker id(10) + 毫秒内序列号(12)
+ * 标志位保证id大于RedisIdWorker生成的id：RedisIdWorker的id是 秒级时间戳 << 32，到2056年才会达到2^62，
+ * 而雪花算法每毫秒只增长2^22，比RedisIdWorker每秒增长的2^32慢，只靠调整开始时间无法保证一直更大
+ * 从redis策略切换到snowflake后id仍然递增，不会与已有的订单id重复；切换是单向的，不能再切回redis策略
+ * worker id可以在配置中指定，也可以启动时从Redis租用一个并定时续期
+ * 租用的worker id在租约可能已经过期后拒绝生成id，避免与重新租用这个worker id的节点重复
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "strategy", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    //开始时间戳（毫秒），40位毫秒时间戳可以用到2056年
+    private static final long BEGIN_TIMESTAMP = LocalDateTime.of(2022, 1, 1, 0, 0, 0)
+            .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+    //worker id和序列号的位数
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    //标志位，id的第62位
+    private static final long FLAG = 1L << 62;
+
+    //租约的值，区分不同节点
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true);
+
+    //续期的Lua脚本，只续期自己租用的worker id
+    private static final DefaultRedisScript<Long> HEARTBEAT_SCRIPT;
+    //释放租约，与锁的释放逻辑相同
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        HEARTBEAT_SCRIPT = new DefaultRedisScript<>();
+        HEARTBEAT_SCRIPT.setLocation(new ClassPathResource("worker_heartbeat.lua"));
+        HEARTBEAT_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //配置的worker id，小于0时从Redis租用
+    @Value("${hmdp.id.worker-id:-1}")
+    private long configuredWorkerId;
+
+    //租约的有效期，超过这个时间没有续期，其他节点可以使用这个worker id
+    @Value("${hmdp.id.worker-lease-ttl:30s}")
+    private Duration leaseTtl;
+
+    //租约到期前预留的时间，覆盖节点之间的时钟误差和续期请求的耗时
+    @Value("${hmdp.id.worker-lease-margin:5s}")
+    private Duration leaseMargin;
+
+    //时钟回拨在这个范围内时等待追上，超过则拒绝生成
+    @Value("${hmdp.id.max-clock-backward:5ms}")
+    private Duration maxClockBackward;
+
+    private long workerId;
+
+    //是否是从Redis租用的worker id
+    private boolean leased;
+
+    //租约已经丢失，继续生成可能与其他节点重复
+    private volatile boolean leaseLost;
+
+    //租约确定有效的截止时间：最近一次续期成功的请求发出时间 + 有效期 - 预留时间
+    private volatile long leaseValidUntil;
+
+    //上一次生成id的时间戳和序列号
+    private long lastTimestamp = -1L;
+    private long sequence = 0L;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (configuredWorkerId >= 0) {
+            if (configuredWorkerId > MAX_WORKER_ID) {
+                throw new IllegalStateException("worker id超出范围：" + configuredWorkerId);
+            }
+            workerId = configuredWorkerId;
+        } else {
+            long begin = System.currentTimeMillis();
+            workerId = leaseWorkerId();
+            leased = true;
+            renewed(begin);
+        }
+        log.info("雪花算法worker id：{}", workerId);
+    }
+
+    //依次尝试租用一个空闲的worker id
+    private long leaseWorkerId() {
+        for (long id = 0; id <= MAX_WORKER_ID; id++) {
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(RedisConstants.ID_WORKER_KEY + id, ID_PREFIX, leaseTtl.toMillis(), TimeUnit.MILLISECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    //定时续期，续期失败时重新占用，被其他节点占用则停止生成id
+    @Scheduled(fixedDelayString = "${hmdp.id.worker-heartbeat-interval:PT10S}")
+    public void heartbeat() {
+        if (!leased || leaseLost) {
+            return;
+        }
+        String key = RedisConstants.ID_WORKER_KEY + workerId;
+        //按请求发出的时间计算有效期，Redis实际续期的时间只会更晚
+        long begin = System.currentTimeMillis();
+        try {
+            Long result = stringRedisTemplate.execute(HEARTBEAT_SCRIPT, Collections.singletonList(key),
+                    ID_PREFIX, String.valueOf(leaseTtl.toMillis()));
+            if (result != null && result == 1L) {
+                renewed(begin);
+                return;
+            }
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(key, ID_PREFIX, leaseTtl.toMillis(), TimeUnit.MILLISECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                renewed(begin);
+            } else {
+                leaseLost = true;
+                log.error("worker id {} 已被其他节点占用，停止生成id", workerId);
+            }
+        } catch (Exception e) {
+            //Redis暂时不可用时在租约确定有效的时间内继续使用当前worker id，之后拒绝生成，直到续期成功
+            log.error("worker id续期失败，{}ms后停止生成id", leaseValidUntil - System.currentTimeMillis(), e);
+        }
+    }
+
+    private void renewed(long begin) {
+        leaseValidUntil = begin + leaseTtl.toMillis() - leaseMargin.toMillis();
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        if (leaseLost) {
+            throw new IllegalStateException("worker id租约已丢失，无法生成id");
+        }
+        long timestamp = System.currentTimeMillis();
+        //租约可能已经过期，其他节点可能已经租用了这个worker id
+        if (leased && timestamp >= leaseValidUntil) {
+            throw new IllegalStateException("worker id租约续期失败，暂停生成id");
+        }
+        //1、时钟回拨，小范围内等待追上上一次的时间
+        if (timestamp < lastTimestamp) {
+            long backward = lastTimestamp - timestamp;
+            if (backward > maxClockBackward.toMillis()) {
+                throw new IllegalStateException("时钟回拨" + backward + "ms，拒绝生成id");
+            }
+            timestamp = waitUntil(lastTimestamp);
+        }
+        //2、同一毫秒内序列号自增，用完则等到下一毫秒
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                timestamp = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0L;
+        }
+        lastTimestamp = timestamp;
+        //3、拼接时间戳、worker id和序列号
+        return FLAG
+                | (timestamp - BEGIN_TIMESTAMP) << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    //自旋等待时钟到达指定的毫秒
+    private static long waitUntil(long target) {
+        long timestamp = System.currentTimeMillis();
+        while (timestamp < target) {
+            Thread.yield();
+            timestamp = System.currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    //正常关闭时释放租约，其他节点可以立即使用
+    @PreDestroy
+    private void destroy() {
+        if (leased && !leaseLost) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), ID_PREFIX);
+        }
+    }
+}
@@ -5,6 +5,7 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int MAX_BATCH_SIZE = 100;
 //    public static final String CODE = "code";
     public static final String PHONE = "phone";
 //    public static final String USER = "user";
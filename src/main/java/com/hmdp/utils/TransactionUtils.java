@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class TransactionUtils {
+    /**
+     * 在当前事务提交后执行，用于写Redis等事务外的操作，事务回滚时不执行
+     * @param action 要执行的操作，没有事务时立即执行
+     */
+    public static void afterCommit(Runnable action){
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,7 @@
+-- 比较用户输入的验证码与Redis中的是否一致
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    -- 一致，删除验证码，防止重复使用
+    redis.call('del',KEYS[1])
+    return 1
+end
+return 0
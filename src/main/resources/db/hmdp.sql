@@ -65,6 +65,16 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_blog_like_flush
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_blog_like_flush`;
+CREATE TABLE `tb_blog_like_flush`  (
+  `flush_id` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '写回批次的id：写回任务id:批次序号',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`flush_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '已写入tb_blog的点赞数增量批次，重试时跳过' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -74,7 +84,9 @@ CREATE TABLE `tb_follow`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_follow`(`user_id`, `follow_user_id`) USING BTREE,
+  INDEX `idx_follow_user`(`follow_user_id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -88,6 +100,7 @@ DROP TABLE IF EXISTS `tb_seckill_voucher`;
 CREATE TABLE `tb_seckill_voucher`  (
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
   `stock` int(8) NOT NULL COMMENT '库存',
+  `shards` int(4) NOT NULL DEFAULT 0 COMMENT '库存分片数，0代表不分片',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `begin_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '失效时间',
@@ -99,6 +112,18 @@ CREATE TABLE `tb_seckill_voucher`  (
 -- Records of tb_seckill_voucher
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_seckill_voucher_stock
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_seckill_voucher_stock`;
+CREATE TABLE `tb_seckill_voucher_stock`  (
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
+  `shard` int(4) UNSIGNED NOT NULL COMMENT '分片序号，从0开始',
+  `stock` int(8) NOT NULL COMMENT '分片的库存',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`voucher_id`, `shard`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀优惠券的分片库存' ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_shop
 -- ----------------------------
@@ -1274,7 +1299,8 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,9 @@
+-- 关注集合不存在时从数据库重建，已经存在时不覆盖（期间可能有新的关注写入）
+-- KEYS[1] 关注集合 follows:userId，ARGV 关注的用户id，包含一个占位成员
+if (redis.call('exists', KEYS[1]) == 1) then
+    return 0
+end
+for i = 1, #ARGV do
+    redis.call('sadd', KEYS[1], ARGV[i])
+end
+return 1
@@ -0,0 +1,9 @@
+-- 领取待写回数据库的点赞数增量
+-- KEYS[1] 增量hash，KEYS[2] 待写回的增量hash的集合，ARGV[1] 本次写回任务专用的hash
+-- 把当前增量整体改名为本次任务专用的hash，之后的点赞写入新的hash
+if (redis.call('exists', KEYS[1]) == 1) then
+    redis.call('rename', KEYS[1], ARGV[1])
+    redis.call('sadd', KEYS[2], ARGV[1])
+end
+-- 返回所有待写回的hash，包括之前写回失败的
+return redis.call('smembers', KEYS[2])
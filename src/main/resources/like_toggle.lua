@@ -0,0 +1,15 @@
+-- 点赞或取消点赞
+-- KEYS[1] 博文的点赞用户集合(zset，score是点赞时间)，KEYS[2] 待写回数据库的点赞数增量(hash)，KEYS[3] 热门博文排行(zset)
+-- ARGV[1] 用户id，ARGV[2] 当前时间戳，ARGV[3] 博文id，ARGV[4] 一次点赞增加的热度
+if (redis.call('zscore', KEYS[1], ARGV[1])) then
+    -- 已经点赞过，取消点赞，返回0
+    redis.call('zrem', KEYS[1], ARGV[1])
+    redis.call('hincrby', KEYS[2], ARGV[3], -1)
+    redis.call('zincrby', KEYS[3], -tonumber(ARGV[4]), ARGV[3])
+    return 0
+end
+-- 没有点赞过，点赞，返回1
+redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+redis.call('hincrby', KEYS[2], ARGV[3], 1)
+redis.call('zincrby', KEYS[3], ARGV[4], ARGV[3])
+return 1
@@ -0,0 +1,11 @@
+-- 可重入锁：Hash结构，field是持有者标识，value是重入次数
+-- KEYS[1] 锁的key，ARGV[1] 持有者标识，ARGV[2] 锁的有效期（毫秒）
+-- 锁不存在，或者是自己持有的锁，重入次数+1并重置有效期
+if(redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    -- 获取成功返回nil
+    return nil
+end
+-- 被别人持有，返回剩余有效期，等待的线程最多等这么久
+return redis.call('pttl', KEYS[1])
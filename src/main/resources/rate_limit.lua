@@ -0,0 +1,15 @@
+-- 滑动窗口限流：有序集合中保存窗口内每次请求的时间
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local limit = tonumber(ARGV[3])
+-- 删除窗口之外的请求
+redis.call('zremrangebyscore', key, 0, now - window)
+-- 窗口内的请求数已达上限，拒绝
+if(redis.call('zcard', key) >= limit) then
+    return 0
+end
+-- 记录本次请求 zadd key now member
+redis.call('zadd', key, now, ARGV[4])
+redis.call('pexpire', key, window)
+return 1
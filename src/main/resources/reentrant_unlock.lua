@@ -0,0 +1,15 @@
+-- 释放可重入锁
+-- KEYS[1] 锁的key，KEYS[2] 释放通知的频道，ARGV[1] 持有者标识，ARGV[2] 锁的有效期（毫秒）
+-- 不是自己持有的锁，返回-1
+if(redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return -1
+end
+-- 重入次数-1，还有剩余则重置有效期，返回0
+if(redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 0
+end
+-- 完全释放，删除锁并通知等待的线程，返回1
+redis.call('del', KEYS[1])
+redis.call('publish', KEYS[2], ARGV[1])
+return 1
@@ -0,0 +1,17 @@
+-- 登录会话保存为Hash：uid是会话所属的用户，nonce是当前有效的刷新令牌随机数
+-- 旧版本保存为String的会话直接作废，需要重新登录
+if(redis.call('type',KEYS[1]).ok ~= 'hash') then
+    redis.call('del',KEYS[1])
+    return 0
+end
+-- 比较刷新令牌的随机数和用户id是否与Redis中保存的一致
+local session = redis.call('hmget',KEYS[1],'uid','nonce')
+if(session[2] == ARGV[1] and session[1] == ARGV[2]) then
+    -- 一致，换成新的随机数并重置有效期，返回会话所属的用户id
+    redis.call('hset',KEYS[1],'nonce',ARGV[3])
+    redis.call('pexpire',KEYS[1],ARGV[4])
+    return tonumber(session[1])
+end
+-- 不一致说明旧的刷新令牌被重复使用或被篡改，可能已经泄露，删除整个登录会话
+redis.call('del',KEYS[1])
+return 0
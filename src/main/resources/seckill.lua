@@ -0,0 +1,36 @@
+-- 1、参数列表
+-- 1.1 库存key
+local stockKey = KEYS[1]
+-- 1.2 订单key(已下单用户集合)
+local orderKey = KEYS[2]
+-- 1.3 订单消息队列
+local streamKey = KEYS[3]
+-- 1.4 用户id
+local userId = ARGV[1]
+-- 1.5 订单id
+local orderId = ARGV[2]
+-- 1.6 优惠券id
+local voucherId = ARGV[3]
+-- 1.7 消息队列的大致最大长度，防止消费者长时间不可用时无限增长
+local maxLen = ARGV[4]
+
+-- 2、判断库存是否充足 get stockKey
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    -- 库存不足，返回1
+    return 1
+end
+
+-- 3、判断用户是否下单 sismember orderKey userId
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+
+-- 4、扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 5、下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 6、发送消息到队列中 XADD stream.orders MAXLEN ~ maxLen * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
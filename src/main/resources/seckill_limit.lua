@@ -0,0 +1,44 @@
+-- 令牌桶限流：同时检查用户和优惠券两个桶，都有令牌时才各扣一个
+-- 1、参数列表
+-- 1.1 用户桶key，1.2 优惠券桶key
+local userKey = KEYS[1]
+local voucherKey = KEYS[2]
+-- 1.3 当前时间（毫秒）
+local now = tonumber(ARGV[1])
+-- 1.4 用户桶每秒生成的令牌数和容量，1.5 优惠券桶每秒生成的令牌数和容量
+local userRate = tonumber(ARGV[2])
+local userBurst = tonumber(ARGV[3])
+local voucherRate = tonumber(ARGV[4])
+local voucherBurst = tonumber(ARGV[5])
+
+-- 2、按经过的时间补充令牌，不超过容量
+local function refill(key, rate, burst)
+    local bucket = redis.call('hmget', key, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1])
+    local ts = tonumber(bucket[2])
+    if (tokens == nil or ts == nil) then
+        return burst
+    end
+    return math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+end
+
+local function take(key, tokens, rate, burst)
+    redis.call('hset', key, 'tokens', tokens - 1, 'ts', now)
+    -- 桶装满所需的时间之后，key没有意义了
+    redis.call('pexpire', key, math.ceil(burst / rate * 1000) + 1000)
+end
+
+-- 3、判断用户桶是否有令牌，没有返回1
+local userTokens = refill(userKey, userRate, userBurst)
+if (userTokens < 1) then
+    return 1
+end
+-- 4、判断优惠券桶是否有令牌，没有返回2
+local voucherTokens = refill(voucherKey, voucherRate, voucherBurst)
+if (voucherTokens < 1) then
+    return 2
+end
+-- 5、扣减令牌
+take(userKey, userTokens, userRate, userBurst)
+take(voucherKey, voucherTokens, voucherRate, voucherBurst)
+return 0
@@ -0,0 +1,35 @@
+-- 分片库存的秒杀资格校验
+-- 1、参数列表
+-- 1.1 KEYS[1] 订单key(已下单用户集合)，KEYS[2] 订单消息队列，KEYS[3..] 各分片的库存key，按探测顺序排列
+local orderKey = KEYS[1]
+local streamKey = KEYS[2]
+-- 1.2 用户id、订单id、优惠券id
+local userId = ARGV[1]
+local orderId = ARGV[2]
+local voucherId = ARGV[3]
+-- 1.3 用户对应的第一个分片和分片数，用于算出扣减的分片序号
+local start = tonumber(ARGV[4])
+local shards = tonumber(ARGV[5])
+-- 1.4 消息队列的大致最大长度
+local maxLen = ARGV[6]
+
+-- 2、判断用户是否下单
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+
+-- 3、从用户的分片开始依次找有库存的分片，所有分片都没有库存才算售罄
+for i = 3, #KEYS do
+    local stock = tonumber(redis.call('get', KEYS[i]))
+    if (stock ~= nil and stock > 0) then
+        -- 4、扣库存、保存用户、发送消息，消息中带上扣减的分片
+        redis.call('incrby', KEYS[i], -1)
+        redis.call('sadd', orderKey, userId)
+        local shard = (start + i - 3) % shards
+        redis.call('xadd', streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'shard', shard)
+        return 0
+    end
+end
+-- 库存不足，返回1
+return 1
@@ -0,0 +1,33 @@
+-- 重新平均分配分片库存，总库存不变
+-- KEYS 各分片的库存key，按分片序号排列
+local shards = #KEYS
+local stocks = {}
+local total = 0
+local empty = false
+for i = 1, shards do
+    local stock = tonumber(redis.call('get', KEYS[i])) or 0
+    if (stock < 0) then
+        stock = 0
+    end
+    stocks[i] = stock
+    total = total + stock
+    if (stock == 0) then
+        empty = true
+    end
+end
+-- 没有空的分片时不需要调整
+if (not empty or total == 0) then
+    return total
+end
+local avg = math.floor(total / shards)
+local rest = total % shards
+for i = 1, shards do
+    local target = avg
+    if (i <= rest) then
+        target = target + 1
+    end
+    if (stocks[i] ~= target) then
+        redis.call('set', KEYS[i], target)
+    end
+end
+return total
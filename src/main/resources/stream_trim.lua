@@ -0,0 +1,23 @@
+-- 删除订单消息队列中已经确认的消息（需要Redis 6.2+的XTRIM MINID）
+-- KEYS[1] 消息队列，ARGV[1] 消费者组
+-- 1、有未确认的消息时，最早的未确认消息之前的都已经确认
+local pending = redis.call('xpending', KEYS[1], ARGV[1])
+local minId = pending[2]
+-- 2、没有未确认的消息时，最后投递的消息及之前的都已经确认
+if (not minId) then
+    local groups = redis.call('xinfo', 'groups', KEYS[1])
+    for _, group in ipairs(groups) do
+        local info = {}
+        for i = 1, #group, 2 do
+            info[group[i]] = group[i + 1]
+        end
+        if (info['name'] == ARGV[1]) then
+            minId = info['last-delivered-id']
+        end
+    end
+end
+if (not minId or minId == '0-0') then
+    return 0
+end
+-- 3、删除id小于minId的消息
+return redis.call('xtrim', KEYS[1], 'MINID', minId)
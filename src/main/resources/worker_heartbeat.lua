@@ -0,0 +1,6 @@
+-- 比较节点标识与worker id租约中的标识是否一致
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    -- 续期 pexpire key ttl
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
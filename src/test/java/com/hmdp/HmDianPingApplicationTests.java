@@ -1,20 +1,62 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.TokenDTO;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucherStock;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.ISeckillVoucherStockService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.BlogFeed;
+import com.hmdp.utils.BlogLikeFlusher;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockFactory;
+import com.hmdp.utils.SignedTokenService;
+import com.hmdp.utils.SmileCacheCodec;
+import com.hmdp.utils.SnowflakeIdWorker;
 import com.hmdp.utils.SystemConstants;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -27,6 +69,36 @@ class HmDianPingApplicationTests {
 
     @Resource
     private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisLockFactory redisLockFactory;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherStockService seckillVoucherStockService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private BlogLikeFlusher blogLikeFlusher;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private BlogFeed blogFeed;
     //创建固定大小为 500 的线程池
     private ExecutorService es= Executors.newFixedThreadPool(500);
 
@@ -61,4 +133,360 @@ class HmDianPingApplicationTests {
         Shop shop = shopService.getById(1L);
         cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+1L,shop,10L, TimeUnit.SECONDS);
     }
+
+    //比较json和smile两种缓存编码的体积和编解码耗时
+    @Test
+    void testCacheCodec() {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(now).setUpdateTime(now);
+        Voucher voucher = new Voucher().setId(1L).setShopId(1L).setTitle("100元代金券").setSubTitle("周一至周五均可使用")
+                .setRules("全场通用，无需预约，可无限叠加，不兑现、不找零，仅限堂食")
+                .setPayValue(8000L).setActualValue(10000L).setType(0).setStatus(1)
+                .setCreateTime(now).setUpdateTime(now);
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("小鱼同学");
+        user.setIcon("/imgs/blogs/blog1.jpg");
+
+        CacheCodec[] codecs = {new JsonCacheCodec(), new SmileCacheCodec(512)};
+        Object[] values = {shop, voucher, user};
+        int rounds = 100000;
+        for (CacheCodec codec : codecs) {
+            for (Object value : values) {
+                LocalDateTime expireTime = now.plusMinutes(30);
+                byte[] bytes = codec.encodeLogical(value, expireTime);
+                //编解码结果必须一致
+                RedisData redisData = codec.decodeLogical(bytes, value.getClass());
+                Assertions.assertEquals(value, redisData.getData());
+                Assertions.assertEquals(expireTime, redisData.getExpireTime());
+                //预热
+                for (int i = 0; i < rounds / 10; i++) {
+                    codec.decodeLogical(codec.encodeLogical(value, expireTime), value.getClass());
+                }
+                long begin = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    codec.encodeLogical(value, expireTime);
+                }
+                long encodeNanos = (System.nanoTime() - begin) / rounds;
+                begin = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    codec.decodeLogical(bytes, value.getClass());
+                }
+                long decodeNanos = (System.nanoTime() - begin) / rounds;
+                System.out.println(codec.getClass().getSimpleName() + " " + value.getClass().getSimpleName()
+                        + " size=" + bytes.length + " encode=" + encodeNanos + "ns decode=" + decodeNanos + "ns");
+            }
+        }
+    }
+
+    //雪花算法：多线程生成的id不重复，并统计每秒生成的id数
+    @Test
+    void testSnowflakeId() throws InterruptedException {
+        //手动创建，启动时从Redis租用worker id
+        SnowflakeIdWorker snowflakeIdWorker = applicationContext.getAutowireCapableBeanFactory()
+                .createBean(SnowflakeIdWorker.class);
+        int threads = 16;
+        int count = 500000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * count);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                for (int j = 0; j < count; j++) {
+                    ids.add(snowflakeIdWorker.nextId("order"));
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        long nanos = System.nanoTime() - begin;
+        Assertions.assertEquals(threads * count, ids.size());
+        System.out.println("ids/s=" + (long) threads * count * 1_000_000_000L / nanos);
+        //从redis策略切换过来后id仍然更大
+        Assertions.assertTrue(snowflakeIdWorker.nextId("order") > redisIdWorker.nextId("order"));
+        applicationContext.getAutowireCapableBeanFactory().destroyBean(snowflakeIdWorker);
+    }
+
+    //比较token解析走Redis和走本地缓存的耗时
+    @Test
+    void testLoginSessionCache() {
+        String token = "test-" + System.nanoTime();
+        String key = RedisConstants.LOGIN_USER_KEY + token;
+        stringRedisTemplate.opsForHash().put(key, "id", "1");
+        stringRedisTemplate.opsForHash().put(key, "nickName", "test");
+        stringRedisTemplate.expire(key, 1, TimeUnit.MINUTES);
+        int rounds = 10000;
+        try {
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                stringRedisTemplate.opsForHash().entries(key);
+            }
+            long redisNanos = (System.nanoTime() - begin) / rounds;
+            //第一次从Redis加载，之后命中本地缓存
+            Assertions.assertEquals(1L, loginSessionCache.get(token).getId());
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                loginSessionCache.get(token);
+            }
+            long localNanos = (System.nanoTime() - begin) / rounds;
+            System.out.println("redis=" + redisNanos + "ns local=" + localNanos + "ns");
+        } finally {
+            loginSessionCache.revoke(token);
+        }
+        Assertions.assertNull(loginSessionCache.get(token));
+    }
+
+    //比较签名令牌的本地校验和HGETALL查询登录用户的耗时
+    @Test
+    void testSignedToken() {
+        //手动创建并切换为stateless模式
+        SignedTokenService signedTokenService = applicationContext.getAutowireCapableBeanFactory()
+                .createBean(SignedTokenService.class);
+        ReflectionTestUtils.setField(signedTokenService, "mode", "stateless");
+        ReflectionTestUtils.setField(signedTokenService, "secret", "test-secret-0123456789-0123456789");
+        ReflectionTestUtils.invokeMethod(signedTokenService, "init");
+
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        user.setNickName("test");
+        TokenDTO tokenDTO = signedTokenService.issue(user);
+        String key = RedisConstants.LOGIN_USER_KEY + tokenDTO.getAccessToken();
+        stringRedisTemplate.opsForHash().put(key, "id", "1");
+        stringRedisTemplate.opsForHash().put(key, "nickName", "test");
+        int rounds = 10000;
+        try {
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                stringRedisTemplate.opsForHash().entries(key);
+            }
+            long redisNanos = (System.nanoTime() - begin) / rounds;
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                signedTokenService.verify(tokenDTO.getAccessToken());
+            }
+            long verifyNanos = (System.nanoTime() - begin) / rounds;
+            System.out.println("hgetall=" + redisNanos + "ns verify=" + verifyNanos + "ns");
+
+            //刷新令牌只能使用一次
+            TokenDTO refreshed = signedTokenService.refresh(tokenDTO.getRefreshToken(), id -> user);
+            Assertions.assertNotNull(refreshed);
+            Assertions.assertNull(signedTokenService.refresh(tokenDTO.getRefreshToken(), id -> user));
+            //篡改刷新令牌中的用户id不能换取其他用户的令牌，并且整个会话作废
+            String[] parts = refreshed.getRefreshToken().split("\\.");
+            UserDTO other = new UserDTO();
+            other.setId(2L);
+            other.setNickName("other");
+            Assertions.assertNull(signedTokenService.refresh(parts[0] + ".2." + parts[2], id -> other));
+            Assertions.assertNull(signedTokenService.refresh(refreshed.getRefreshToken(), id -> user));
+            //注销后访问令牌失效
+            signedTokenService.revoke(tokenDTO.getAccessToken());
+            Assertions.assertNull(signedTokenService.verify(tokenDTO.getAccessToken()));
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    //多个线程竞争同一把锁，比较SimpleRedisLock和Redisson的吞吐量，并验证可重入和看门狗续期
+    @Test
+    void testRedisLock() throws InterruptedException {
+        ILock lock = redisLockFactory.getLock("test");
+        Assertions.assertTrue(lock.tryLock(0, -1, TimeUnit.SECONDS));
+        try {
+            //可重入
+            Assertions.assertTrue(lock.tryLock(0, -1, TimeUnit.SECONDS));
+            lock.unlock();
+            //有效期30秒，等待超过1/3后应该已经续期
+            Thread.sleep(12000);
+            Long ttl = stringRedisTemplate.getExpire("lock:test", TimeUnit.SECONDS);
+            Assertions.assertTrue(ttl != null && ttl > 20);
+        } finally {
+            lock.unlock();
+        }
+        Assertions.assertFalse(stringRedisTemplate.hasKey("lock:test"));
+
+        int threads = 50, rounds = 20;
+        long simple = contend(threads, rounds, () -> lock.tryLock(10, -1, TimeUnit.SECONDS), lock::unlock);
+        RLock rLock = redissonClient.getLock("lock:redisson:test");
+        long redisson = contend(threads, rounds, () -> rLock.tryLock(10, -1, TimeUnit.SECONDS), rLock::unlock);
+        System.out.println("simple=" + simple + "ms redisson=" + redisson + "ms");
+    }
+
+    //每个线程加锁、释放rounds次，返回总耗时
+    private long contend(int threads, int rounds, Callable<Boolean> tryLock, Runnable unlock)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        int[] counter = new int[1];
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    for (int j = 0; j < rounds; j++) {
+                        if (!tryLock.call()) {
+                            continue;
+                        }
+                        try {
+                            counter[0]++;
+                        } finally {
+                            unlock.run();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        //锁保证了计数没有丢失
+        Assertions.assertEquals(threads * rounds, counter[0]);
+        return System.currentTimeMillis() - begin;
+    }
+
+    //分片库存：自己的分片不够时从其他分片扣，所有分片都扣完才售罄，扣减的总数准确
+    @Test
+    void testShardedStock() {
+        Long voucherId = System.currentTimeMillis();
+        int shards = 3;
+        List<String> stockKeys = seckillVoucherStockService.stockKeys(voucherId, shards);
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        String streamKey = "stream.orders.test." + voucherId;
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill_sharded.lua"));
+        script.setResultType(Long.class);
+        try {
+            //1、数据库和Redis中的库存拆成2、1、1
+            transactionTemplate.executeWithoutResult(status -> seckillVoucherStockService.resetShards(voucherId, shards, 4));
+            Assertions.assertEquals("2", stringRedisTemplate.opsForValue().get(stockKeys.get(0)));
+
+            //2、Redis：所有用户都从分片2开始，分片2扣完后依次扣分片0、1，第5个用户售罄
+            for (long userId = 1; userId <= 5; userId++) {
+                List<String> keys = new ArrayList<>(Arrays.asList(orderKey, streamKey));
+                for (int i = 0; i < shards; i++) {
+                    keys.add(stockKeys.get((2 + i) % shards));
+                }
+                Long result = stringRedisTemplate.execute(script, keys, String.valueOf(userId),
+                        String.valueOf(userId), voucherId.toString(), "2", String.valueOf(shards), "1000");
+                Assertions.assertEquals(userId <= 4 ? 0L : 1L, result);
+            }
+            for (String key : stockKeys) {
+                Assertions.assertEquals("0", stringRedisTemplate.opsForValue().get(key));
+            }
+            List<Object> shardsOfOrders = stringRedisTemplate.opsForStream().range(streamKey, Range.unbounded())
+                    .stream().map(record -> record.getValue().get("shard")).collect(Collectors.toList());
+            Assertions.assertEquals(Arrays.asList("2", "0", "0", "1"), shardsOfOrders);
+
+            //3、数据库：一次扣3个，分片2只有1个，剩下的从分片0扣
+            Assertions.assertTrue(deduct(voucherId, Collections.singletonMap(2, 3)));
+            Assertions.assertEquals(Arrays.asList(0, 1, 0), shardStocks(voucherId));
+            //多个起始分片一起扣，总数不够时全部回滚
+            Map<Integer, Integer> counts = new TreeMap<>();
+            counts.put(0, 1);
+            counts.put(1, 1);
+            Assertions.assertFalse(deduct(voucherId, counts));
+            Assertions.assertEquals(Arrays.asList(0, 1, 0), shardStocks(voucherId));
+            //最后1个从分片0开始找，在分片1扣到，之后售罄
+            Assertions.assertTrue(deduct(voucherId, Collections.singletonMap(0, 1)));
+            Assertions.assertEquals(Arrays.asList(0, 0, 0), shardStocks(voucherId));
+            Assertions.assertFalse(deduct(voucherId, Collections.singletonMap(1, 1)));
+        } finally {
+            seckillVoucherStockService.remove(new QueryWrapper<SeckillVoucherStock>().eq("voucher_id", voucherId));
+            List<String> keys = new ArrayList<>(stockKeys);
+            keys.add(orderKey);
+            keys.add(streamKey);
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    //和下单一样在事务中扣减，失败时回滚
+    private boolean deduct(Long voucherId, Map<Integer, Integer> counts) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            boolean success = seckillVoucherStockService.deduct(voucherId, counts);
+            if (!success) {
+                status.setRollbackOnly();
+            }
+            return success;
+        }));
+    }
+
+    private List<Integer> shardStocks(Long voucherId) {
+        return seckillVoucherStockService.query().eq("voucher_id", voucherId).orderByAsc("shard").list()
+                .stream().map(SeckillVoucherStock::getStock).collect(Collectors.toList());
+    }
+
+    //点赞数写回：上次已经写入数据库的批次重试时跳过，不会重复累加
+    @Test
+    void testBlogLikeFlushReplay() {
+        Long blogId = 4L;
+        int liked = blogMapper.selectById(blogId).getLiked();
+        String prefix = RedisConstants.BLOG_LIKED_DELTA_KEY + ":flushing:";
+        //1、模拟上次写回时批次0已经提交，但删除增量前宕机：重试时跳过，点赞数不变
+        String runId = "test" + System.nanoTime();
+        stringRedisTemplate.opsForHash().put(prefix + runId, blogId.toString(), "2");
+        blogMapper.insertLikeFlush(runId + ":0");
+        ReflectionTestUtils.invokeMethod(blogLikeFlusher, "flush", prefix + runId);
+        Assertions.assertEquals(liked, blogMapper.selectById(blogId).getLiked());
+        //写回完成后增量和批次记录都已删除
+        Assertions.assertFalse(stringRedisTemplate.hasKey(prefix + runId));
+        Assertions.assertEquals(1, blogMapper.insertLikeFlush(runId + ":0"));
+        blogMapper.deleteLikeFlush(runId);
+
+        //2、新的增量正常写回，只累加一次
+        runId = "test" + System.nanoTime();
+        stringRedisTemplate.opsForHash().put(prefix + runId, blogId.toString(), "2");
+        try {
+            ReflectionTestUtils.invokeMethod(blogLikeFlusher, "flush", prefix + runId);
+            Assertions.assertEquals(liked + 2, blogMapper.selectById(blogId).getLiked());
+        } finally {
+            blogMapper.updateLikedBatch(Collections.singletonMap(blogId, (long) liked - blogMapper.selectById(blogId).getLiked()));
+        }
+    }
+
+    //关注推送的多路归并：时间戳相同的博文跨页时不重复、不遗漏，收件箱和发件箱中重复的博文只返回一次
+    @Test
+    void testFeedMerge() {
+        //收件箱和一个大V的发件箱，博文4同时在两边，博文6、5、4、3的时间戳相同
+        List<List<long[]>> sources = Arrays.asList(
+                Arrays.asList(new long[]{5, 100}, new long[]{4, 100}, new long[]{3, 100},
+                        new long[]{2, 90}, new long[]{1, 80}),
+                Arrays.asList(new long[]{6, 100}, new long[]{4, 100}, new long[]{0, 70}));
+        List<Object> ids = new ArrayList<>();
+        long max = 1000;
+        int offset = 0;
+        int pages = 0;
+        while (true) {
+            ScrollResult page = feedPage(sources, max, offset, 2);
+            if (page.getList().isEmpty()) {
+                break;
+            }
+            Assertions.assertTrue(page.getList().size() <= 2);
+            ids.addAll(page.getList());
+            max = page.getMinTime();
+            offset = page.getOffset();
+            pages++;
+        }
+        Assertions.assertEquals(Arrays.asList(6L, 5L, 4L, 3L, 2L, 1L, 0L), ids);
+        Assertions.assertEquals(4, pages);
+        //第二页：跳过时间戳100的前2条，下一页要跳过时间戳100的4条
+        ScrollResult second = feedPage(sources, 100, 2, 2);
+        Assertions.assertEquals(Arrays.asList(4L, 3L), second.getList());
+        Assertions.assertEquals(100L, second.getMinTime());
+        Assertions.assertEquals(4, second.getOffset());
+    }
+
+    //和BlogFeed.read一样，每个来源取不超过max的前offset+count条，再交给merge归并
+    private ScrollResult feedPage(List<List<long[]>> sources, long max, int offset, int count) {
+        List<Object> results = new ArrayList<>();
+        for (List<long[]> source : sources) {
+            results.add(source.stream().filter(item -> item[1] <= max).limit(offset + count)
+                    .map(item -> new DefaultTypedTuple<>(String.valueOf(item[0]), (double) item[1]))
+                    .collect(Collectors.toCollection(LinkedHashSet::new)));
+        }
+        return ReflectionTestUtils.invokeMethod(blogFeed, "merge", results, max, offset, count);
+    }
 }